@@ -0,0 +1,120 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.fisheye.event.CommitEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Measures the cost of handling one commit in the plugin itself, against
+ * fake FishEye and Crucible services that answer instantly, for directories
+ * of various sizes.
+ * </p>
+ * <p>
+ * {@link #handleEvent()} is what the event thread pays: the repository and
+ * duplicate checks, journaling the commit and handing it to the work queue,
+ * whose processor is replaced by a counter. {@link #processCommit()} runs the
+ * whole pipeline for a new commit on the calling thread: committer lookup,
+ * scrutiny check and creating (or, in iterative mode, finding and appending
+ * to) a review.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommitPipelineBenchmark {
+
+    private static final int COMMITS = 4096;
+
+    @Param({"100", "15000"})
+    public int userCount;
+
+    @Param({"10", "500"})
+    public int projectCount;
+
+    @Param({"0", "50"})
+    public int groupCount;
+
+    @Param({"false", "true"})
+    public boolean iterative;
+
+    private PluginFixture plugin;
+    private CommitEvent[] events;
+    private CommitEvent unknownRepository;
+    private CommitEvent duplicate;
+    private int next;
+    private int sequence;
+    private final AtomicLong queued = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        final FakeFecru fecru = new FakeFecru(userCount, projectCount, groupCount);
+        plugin = new PluginFixture(fecru, PluginFixture.defaultSettings(fecru).setIterative(iterative).build());
+        plugin.workQueue.setProcessor(new CommitWorkQueue.Processor() {
+            public void process(CommitWork work) {
+                queued.incrementAndGet();
+            }
+        });
+
+        events = new CommitEvent[COMMITS];
+        for (int i = 0; i < COMMITS; i++) {
+            events[i] = fecru.newCommitEvent(i % projectCount, i);
+        }
+        unknownRepository = fecru.newCommitEvent(projectCount, 0);
+        duplicate = fecru.newCommitEvent(0, -1);
+        plugin.processedChangesets.markProcessed(duplicate.getRepositoryName(), duplicate.getChangeSetId());
+
+        // build the caches up front, so the first iteration is not an outlier:
+        for (int i = 0; i < COMMITS; i++) {
+            processCommit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        plugin.destroy();
+    }
+
+    @Benchmark
+    public void handleEvent() {
+        plugin.listener.handleEvent(events[next++ & (COMMITS - 1)]);
+    }
+
+    @Benchmark
+    public void handleEventForUnknownRepository() {
+        plugin.listener.handleEvent(unknownRepository);
+    }
+
+    @Benchmark
+    public void handleDuplicateEvent() {
+        plugin.listener.handleEvent(duplicate);
+    }
+
+    /**
+     * Processes a commit the plugin has not seen before.
+     */
+    @Benchmark
+    public void processCommit() {
+        final int repository = sequence % projectCount;
+        plugin.listener.processCommit(new CommitWork(FakeFecru.repository(repository),
+                repository + "." + (COMMITS + sequence++)));
+    }
+}
@@ -0,0 +1,491 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.crucible.spi.PermId;
+import com.atlassian.crucible.spi.data.ChangesetData;
+import com.atlassian.crucible.spi.data.ProjectData;
+import com.atlassian.crucible.spi.data.ReviewData;
+import com.atlassian.crucible.spi.data.UserData;
+import com.atlassian.crucible.spi.data.UserProfileData;
+import com.atlassian.crucible.spi.services.ImpersonationService;
+import com.atlassian.crucible.spi.services.Operation;
+import com.atlassian.crucible.spi.services.ProjectService;
+import com.atlassian.crucible.spi.services.ReviewService;
+import com.atlassian.crucible.spi.services.SearchService;
+import com.atlassian.crucible.spi.services.UserService;
+import com.atlassian.fisheye.event.CommitEvent;
+import com.atlassian.fisheye.plugin.web.helpers.VelocityHelper;
+import com.atlassian.fisheye.spi.data.ChangesetDataFE;
+import com.atlassian.fisheye.spi.services.RevisionDataService;
+import com.atlassian.sal.api.user.UserManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * <p>
+ * In-memory stand-ins for the FishEye, Crucible and SAL services the plugin
+ * talks to, populated with a synthetic directory of users, projects and
+ * groups.
+ * </p>
+ * <p>
+ * The services are dynamic proxies that dispatch on the method name, so only
+ * the calls the plugin actually makes are implemented; anything else throws
+ * {@link UnsupportedOperationException}. Data objects are Mockito stubs that
+ * are created up front, so stubbing costs are not part of a measurement.
+ * Every service call is counted per method.
+ * </p>
+ * <p>
+ * User <code>userN</code> commits as <code>committerN</code> to repository
+ * <code>REPO{N % projects}</code>, which is the default repository of project
+ * <code>P{N % projects}</code>. Every project is moderated by
+ * <code>user0</code>.
+ * </p>
+ * <p>
+ * Calls to the remote services (everything but impersonation and SAL) can be
+ * given a latency and an error rate, to simulate a loaded server.
+ * </p>
+ */
+class FakeFecru {
+
+    static final String ADMIN = "admin";
+
+    private static final int BRANCHES_PER_REPOSITORY = 50;
+    private static final int CHANGESETS_PER_REPOSITORY = 1000;
+
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    final int userCount;
+    final int projectCount;
+    final int groupCount;
+
+    final RevisionDataService revisionService;
+    final ReviewService reviewService;
+    final ProjectService projectService;
+    final UserService userService;
+    final UserManager userManager;
+    final ImpersonationService impersonator;
+    final SearchService searchService;
+    final VelocityHelper velocity;
+
+    private final List<UserData> users = new ArrayList<UserData>();
+    private final Map<String, UserData> usersByName = new HashMap<String, UserData>();
+    private final Map<String, UserProfileData> profiles = new HashMap<String, UserProfileData>();
+    private final List<ProjectData> projects = new ArrayList<ProjectData>();
+    private final List<String> groups = new ArrayList<String>();
+
+    private final ConcurrentMap<String, ChangesetDataFE> changesets = new ConcurrentHashMap<String, ChangesetDataFE>();
+    private final ConcurrentMap<String, ReviewData> reviewsById = new ConcurrentHashMap<String, ReviewData>();
+    private final ConcurrentMap<String, ReviewData> reviewsByJiraKey = new ConcurrentHashMap<String, ReviewData>();
+    private final ConcurrentMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicInteger reviewSequence = new AtomicInteger();
+    private final AtomicLong reviewsCreated = new AtomicLong();
+
+    private volatile long latencyMicros;
+    private volatile long jitterMicros;
+    private volatile double errorRate;
+    private volatile boolean distinctChangesets;
+    private volatile ReviewListener reviewListener;
+    private final AtomicLong injectedFailures = new AtomicLong();
+
+    /**
+     * Notified when changesets were added to a new or existing review.
+     */
+    interface ReviewListener {
+        void reviewed(String repository, List<ChangesetData> changesets);
+    }
+
+    FakeFecru(int userCount, int projectCount, int groupCount) {
+
+        this.userCount = userCount;
+        this.projectCount = projectCount;
+        this.groupCount = groupCount;
+
+        for (int i = 0; i < userCount; i++) {
+            final UserData user = newUser("user" + i);
+            final UserProfileData profile = mock(UserProfileData.class);
+            when(profile.getMappedCommitters()).thenReturn(Collections.singletonMap(
+                    repository(i % projectCount), Collections.singletonList("committer" + i)));
+            users.add(user);
+            usersByName.put(user.getUserName(), user);
+            profiles.put(user.getUserName(), profile);
+        }
+        final UserData admin = newUser(ADMIN);
+        usersByName.put(ADMIN, admin);
+        profiles.put(ADMIN, mock(UserProfileData.class));
+
+        for (int i = 0; i < projectCount; i++) {
+            final ProjectData project = mock(ProjectData.class);
+            when(project.getKey()).thenReturn(projectKey(i));
+            when(project.getName()).thenReturn("Project " + i);
+            when(project.getDefaultRepositoryName()).thenReturn(repository(i));
+            when(project.getDefaultModerator()).thenReturn("user0");
+            when(project.getDefaultReviewerUsers()).thenReturn(Arrays.asList("user1", "user2"));
+            when(project.getDefaultDuration()).thenReturn(5);
+            when(project.getDefaultObjectives()).thenReturn("");
+            when(project.isAllowReviewersToJoin()).thenReturn(true);
+            projects.add(project);
+        }
+
+        for (int i = 0; i < groupCount; i++) {
+            groups.add("group" + i);
+        }
+
+        revisionService = proxy(RevisionDataService.class, new Handler() {
+            Object handle(String method, Object[] args) {
+                if ("getChangeset".equals(method)) {
+                    return getChangeset((String) args[0], (String) args[1]);
+                }
+                return unsupported(method);
+            }
+        });
+        projectService = proxy(ProjectService.class, new Handler() {
+            Object handle(String method, Object[] args) {
+                if ("getAllProjects".equals(method)) {
+                    return new ArrayList<ProjectData>(projects);
+                }
+                return unsupported(method);
+            }
+        });
+        userService = proxy(UserService.class, new Handler() {
+            Object handle(String method, Object[] args) {
+                if ("getAllUsers".equals(method)) {
+                    return new ArrayList<UserData>(users);
+                } else if ("getUser".equals(method)) {
+                    return usersByName.get((String) args[0]);
+                } else if ("getUserProfile".equals(method)) {
+                    return profiles.get((String) args[0]);
+                }
+                return unsupported(method);
+            }
+        });
+        userManager = proxy(UserManager.class, new Handler() {
+            Object handle(String method, Object[] args) {
+                if ("isUserInGroup".equals(method)) {
+                    // roughly one in ten users is a member of any given group:
+                    return ((String) args[0]).hashCode() % 10 == ((String) args[1]).hashCode() % 10;
+                }
+                return unsupported(method);
+            }
+        });
+        impersonator = proxy(ImpersonationService.class, new Handler() {
+            @SuppressWarnings("unchecked")
+            Object handle(String method, Object[] args) throws Throwable {
+                if ("doAsUser".equals(method)) {
+                    return ((Operation<Object, Throwable>) args[args.length - 1]).perform();
+                }
+                return unsupported(method);
+            }
+        });
+        searchService = proxy(SearchService.class, new Handler() {
+            Object handle(String method, Object[] args) {
+                if ("searchForReviewsByJiraKey".equals(method)) {
+                    final ReviewData review = reviewsByJiraKey.get((String) args[0]);
+                    return review == null ? new ArrayList<ReviewData>() : Collections.singletonList(review);
+                }
+                return unsupported(method);
+            }
+        });
+        reviewService = proxy(ReviewService.class, new Handler() {
+            Object handle(String method, Object[] args) {
+                if ("createReviewFromChangeSets".equals(method)) {
+                    final ReviewData review = createReview((ReviewData) args[0]);
+                    notifyReviewed(args);
+                    return review;
+                } else if ("getReview".equals(method)) {
+                    return reviewsById.get(((PermId<?>) args[0]).getId());
+                } else if ("addChangesetsToReview".equals(method)) {
+                    notifyReviewed(args);
+                    return null;
+                } else if ("addGeneralComment".equals(method) || "addReviewers".equals(method) ||
+                        "changeState".equals(method)) {
+                    return null;
+                }
+                return unsupported(method);
+            }
+        });
+        velocity = proxy(VelocityHelper.class, new Handler() {
+            Object handle(String method, Object[] args) {
+                if ("renderVelocityTemplate".equals(method)) {
+                    // there is no template engine here; the servlet's work is building the parameters
+                    return null;
+                }
+                return unsupported(method);
+            }
+        });
+    }
+
+    /**
+     * Delays every remote call by <code>latencyMicros</code>, plus a uniformly
+     * distributed random delay of up to <code>jitterMicros</code>.
+     */
+    void setRemoteLatency(long latencyMicros, long jitterMicros) {
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+    }
+
+    /**
+     * Makes the specified fraction of remote calls fail with a
+     * {@link RuntimeException}, after their latency.
+     */
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Synthesizes a new stub for every changeset that is requested, rather
+     * than aliasing them to a bounded set. Costs more memory and time per
+     * call, but every changeset reports its own csid.
+     */
+    void setDistinctChangesets(boolean distinctChangesets) {
+        this.distinctChangesets = distinctChangesets;
+    }
+
+    void setReviewListener(ReviewListener reviewListener) {
+        this.reviewListener = reviewListener;
+    }
+
+    long getInjectedFailures() {
+        return injectedFailures.get();
+    }
+
+    static String repository(int index) {
+        return "REPO" + index;
+    }
+
+    static String projectKey(int index) {
+        return "P" + index;
+    }
+
+    List<String> getProjectKeys() {
+        final List<String> keys = new ArrayList<String>();
+        for (ProjectData project : projects) {
+            keys.add(project.getKey());
+        }
+        return keys;
+    }
+
+    List<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return  a commit event for the n-th synthetic changeset of the
+     * specified repository.
+     */
+    CommitEvent newCommitEvent(int repository, int n) {
+        final CommitEvent event = mock(CommitEvent.class);
+        when(event.getRepositoryName()).thenReturn(repository(repository));
+        when(event.getChangeSetId()).thenReturn(csid(repository, n));
+        return event;
+    }
+
+    /**
+     * @return  the number of calls made to each service method so far.
+     */
+    Map<String, Long> getCallCounts() {
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : calls.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    long getTotalCalls() {
+        long total = 0;
+        for (AtomicLong count : calls.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    long getReviewsCreated() {
+        return reviewsCreated.get();
+    }
+
+    private static String csid(int repository, int n) {
+        return repository + "." + n;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void notifyReviewed(Object[] args) {
+        final ReviewListener listener = reviewListener;
+        if (listener != null) {
+            listener.reviewed((String) args[1], (List<ChangesetData>) args[2]);
+        }
+    }
+
+    /**
+     * Applies the configured latency and error rate to a remote call.
+     */
+    private void simulateRemoteCall(String name) {
+
+        final long latency = latencyMicros;
+        final long jitter = jitterMicros;
+        final double errors = errorRate;
+        if (latency == 0 && jitter == 0 && errors == 0) {
+            return;
+        }
+        final Random random = RANDOM.get();
+        final long delay = latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+        if (delay > 0) {
+            final long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(delay);
+            for (long remaining = deadline - System.nanoTime(); remaining > 0; remaining = deadline - System.nanoTime()) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+        if (errors > 0 && random.nextDouble() < errors) {
+            injectedFailures.incrementAndGet();
+            throw new RuntimeException("Injected failure of " + name);
+        }
+    }
+
+    /**
+     * Synthesizes a changeset from its id: changeset <code>r.n</code> of
+     * repository r is authored by one of the users that commit to r and sits
+     * on one of a fixed number of feature branches. To bound the number of
+     * stubs, only {@link #CHANGESETS_PER_REPOSITORY} distinct changesets
+     * exist per repository; the others are aliases, and report the csid of
+     * the changeset they alias.
+     */
+    private ChangesetDataFE getChangeset(String repository, String csid) {
+
+        final int dot = csid.indexOf('.');
+        final int repoIndex = Integer.parseInt(csid.substring(0, dot));
+        final boolean distinct = distinctChangesets;
+        final int sequence = Integer.parseInt(csid.substring(dot + 1));
+        final int n = distinct ? sequence : sequence % CHANGESETS_PER_REPOSITORY;
+        final String key = repository + ":" + n;
+        ChangesetDataFE cs = distinct ? null : changesets.get(key);
+        if (cs == null) {
+            final int usersInRepo = Math.max(1, (userCount - repoIndex + projectCount - 1) / projectCount);
+            final int author = repoIndex + (n % usersInRepo) * projectCount;
+
+            cs = mock(ChangesetDataFE.class);
+            when(cs.getCsid()).thenReturn(csid(repoIndex, n));
+            when(cs.getAuthor()).thenReturn("committer" + author);
+            when(cs.getComment()).thenReturn("Change " + n + " for " + projectKey(repoIndex) + "-" + (n % 7) +
+                    "\n\nSome more details about the change.");
+            when(cs.getDate()).thenReturn(new Date());
+            when(cs.getBranches()).thenReturn(new HashSet<String>(Collections.singleton(
+                    "feature/" + projectKey(repoIndex) + "-" + (n % BRANCHES_PER_REPOSITORY))));
+            if (!distinct) {
+                final ChangesetDataFE existing = changesets.putIfAbsent(key, cs);
+                cs = existing == null ? cs : existing;
+            }
+        }
+        return cs;
+    }
+
+    /**
+     * Keeps one review per JIRA key, so that long benchmark runs do not pile
+     * up reviews; creating another review for the same key returns the
+     * existing one.
+     */
+    private ReviewData createReview(ReviewData template) {
+
+        reviewsCreated.incrementAndGet();
+        final String jiraKey = template.getJiraIssueKey();
+        ReviewData review = reviewsByJiraKey.get(jiraKey);
+        if (review == null) {
+            final String id = template.getProjectKey() + "-" + reviewSequence.incrementAndGet();
+            review = mock(ReviewData.class);
+            when(review.getPermaId()).thenReturn(new PermId<ReviewData>(id));
+            when(review.getState()).thenReturn(ReviewData.State.Review);
+            when(review.getAuthor()).thenReturn(template.getAuthor());
+            when(review.getModerator()).thenReturn(template.getModerator());
+            when(review.getJiraIssueKey()).thenReturn(jiraKey);
+
+            final ReviewData existing = reviewsByJiraKey.putIfAbsent(jiraKey, review);
+            if (existing == null) {
+                reviewsById.put(id, review);
+            } else {
+                review = existing;
+            }
+        }
+        return review;
+    }
+
+    private static UserData newUser(String name) {
+        final UserData user = mock(UserData.class);
+        when(user.getUserName()).thenReturn(name);
+        when(user.getDisplayName()).thenReturn(name);
+        return user;
+    }
+
+    private <T> T proxy(final Class<T> service, final Handler handler) {
+        return service.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {service},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return invokeObjectMethod(proxy, method, args, service);
+                        }
+                        final String name = service.getSimpleName() + "." + method.getName();
+                        AtomicLong count = calls.get(name);
+                        if (count == null) {
+                            calls.putIfAbsent(name, new AtomicLong());
+                            count = calls.get(name);
+                        }
+                        count.incrementAndGet();
+                        if (service != ImpersonationService.class && service != UserManager.class &&
+                                service != VelocityHelper.class) {
+                            simulateRemoteCall(name);
+                        }
+                        return handler.invoke(service, method.getName(), args == null ? new Object[0] : args);
+                    }
+                }));
+    }
+
+    private static Object invokeObjectMethod(Object proxy, Method method, Object[] args, Class<?> service)
+            throws InvocationTargetException {
+        if ("equals".equals(method.getName())) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(method.getName())) {
+            return System.identityHashCode(proxy);
+        }
+        return "Fake" + service.getSimpleName();
+    }
+
+    /**
+     * Implements the methods of one fake service.
+     */
+    abstract static class Handler {
+
+        /**
+         * Hook for subclasses that wrap every call, e.g. to add latency.
+         */
+        Object invoke(Class<?> service, String method, Object[] args) throws Throwable {
+            return handle(method, args);
+        }
+
+        abstract Object handle(String method, Object[] args) throws Throwable;
+
+        Object unsupported(String method) {
+            throw new UnsupportedOperationException(method);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.crucible.spi.data.ChangesetData;
+import com.atlassian.fisheye.event.CommitEvent;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Replays a stream of commits through the whole plugin, against a
+ * {@link FakeFecru} with simulated remote latency and failures, and reports
+ * throughput, commit-to-review latency and the remote calls that were made.
+ * Runs entirely in-process, so it needs neither a FishEye instance nor a
+ * network connection:
+ * </p>
+ * <pre>
+ * java -cp target/benchmarks.jar com.atlassian.example.reviewcreator.LoadSimulation \
+ *     --commits=20000 --rate=200 --latency=20 --jitter=30 --errors=0.01
+ * </pre>
+ * <p>
+ * By default commits arrive at a fixed rate, spread round-robin over the
+ * repositories. With <code>--trace=file</code> the arrival pattern is read
+ * from a file instead, one commit per line: the milliseconds since the start
+ * of the trace and the index of the repository, separated by whitespace.
+ * Such a trace can be exported from the commit times in a real FishEye
+ * instance. While the commits are replayed, the admin page is rendered every
+ * <code>--adminPoll</code> ms to measure it under load.
+ * </p>
+ * <p>
+ * Commit-to-review latency is measured from the moment the commit event is
+ * delivered until the changeset was added to a review. Commits that never
+ * make it into a review, because they were skipped or failed, are reported
+ * separately.
+ * </p>
+ */
+public class LoadSimulation {
+
+    private static final long DRAIN_TIMEOUT_MILLIS = 300000;
+
+    private final Map<String, String> options;
+
+    private final ConcurrentMap<String, Long> submitted = new ConcurrentHashMap<String, Long>();
+    private final LatencyHistogram reviewLatency = new LatencyHistogram();
+    private final LatencyHistogram submitLatency = new LatencyHistogram();
+    private final LatencyHistogram adminLatency = new LatencyHistogram();
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.err.println("Usage: LoadSimulation [--name=value ...], see the javadoc for the options.");
+                System.exit(1);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadSimulation(options).run();
+    }
+
+    LoadSimulation(Map<String, String> options) {
+        this.options = options;
+    }
+
+    void run() throws Exception {
+
+        final int projects = intOption("projects", 50);
+        final FakeFecru fecru = new FakeFecru(intOption("users", 1000), projects, intOption("groups", 10));
+        fecru.setDistinctChangesets(true);
+        fecru.setReviewListener(new FakeFecru.ReviewListener() {
+            public void reviewed(String repository, List<ChangesetData> changesets) {
+                final long now = System.nanoTime();
+                for (ChangesetData cs : changesets) {
+                    final Long start = submitted.remove(repository + "\t" + cs.getCsid());
+                    if (start != null) {
+                        reviewLatency.record(TimeUnit.NANOSECONDS.toMicros(now - start));
+                    }
+                }
+            }
+        });
+
+        final PluginFixture plugin = new PluginFixture(fecru, PluginFixture.defaultSettings(fecru)
+                .setIterative(Boolean.parseBoolean(option("iterative", "false")))
+                .setWorkerThreads(intOption("workers", 4))
+                .setQueueCapacity(intOption("queueCapacity", 1000))
+                .setLaneCapacity(intOption("laneCapacity", 250))
+                .setOverflowPolicy(OverflowPolicy.valueOf(option("overflowPolicy", OverflowPolicy.BLOCK.name())))
+                .setCoalesceWindow(longOption("coalesceWindow", 0))
+                .build());
+        try {
+            final long[] arrivals;
+            final int[] repositories;
+            final String trace = options.get("trace");
+            if (trace == null) {
+                final int commits = intOption("commits", 10000);
+                final double rate = Double.parseDouble(option("rate", "100"));
+                arrivals = new long[commits];
+                repositories = new int[commits];
+                for (int i = 0; i < commits; i++) {
+                    arrivals[i] = (long) (i * 1e9 / rate);
+                    repositories[i] = i % projects;
+                }
+            } else {
+                final List<long[]> lines = readTrace(trace);
+                arrivals = new long[lines.size()];
+                repositories = new int[lines.size()];
+                for (int i = 0; i < lines.size(); i++) {
+                    arrivals[i] = TimeUnit.MILLISECONDS.toNanos(lines.get(i)[0] - lines.get(0)[0]);
+                    repositories[i] = (int) (lines.get(i)[1] % projects);
+                }
+            }
+
+            // warm up the caches, so the first commits do not pay for building them:
+            for (int i = 0; i < projects; i++) {
+                plugin.listener.processCommit(new CommitWork(FakeFecru.repository(i), i + "." + (arrivals.length + i)));
+            }
+
+            // creating the mocks is slow, so do it before the clock starts:
+            final CommitEvent[] events = new CommitEvent[arrivals.length];
+            for (int i = 0; i < events.length; i++) {
+                events[i] = fecru.newCommitEvent(repositories[i], i);
+            }
+
+            fecru.setRemoteLatency(TimeUnit.MILLISECONDS.toMicros(longOption("latency", 0)),
+                    TimeUnit.MILLISECONDS.toMicros(longOption("jitter", 0)));
+            fecru.setErrorRate(Double.parseDouble(option("errors", "0")));
+            final long callsBefore = fecru.getTotalCalls();
+            final Map<String, Long> callCountsBefore = fecru.getCallCounts();
+            final Map<PipelineMetrics.Outcome, Long> outcomesBefore = getOutcomes(plugin.metrics);
+
+            final AdminPoller poller = new AdminPoller(plugin.admin, longOption("adminPoll", 1000));
+            final Thread pollerThread = new NamedThreadFactory("admin-poller").newThread(poller);
+            pollerThread.start();
+
+            final long start = System.nanoTime();
+            for (int i = 0; i < events.length; i++) {
+                final long due = start + arrivals[i];
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+                final long submit = System.nanoTime();
+                submitted.put(events[i].getRepositoryName() + "\t" + events[i].getChangeSetId(), submit);
+                plugin.listener.handleEvent(events[i]);
+                submitLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - submit));
+            }
+            final long replayed = System.nanoTime();
+
+            final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+            while (plugin.journal.getOutstandingCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            final long drained = System.nanoTime();
+            poller.stop();
+            pollerThread.join();
+
+            report(plugin, events.length, start, replayed, drained, callsBefore, callCountsBefore, outcomesBefore);
+        } finally {
+            plugin.destroy();
+        }
+    }
+
+    private void report(PluginFixture plugin, int commits, long start, long replayed, long drained,
+                        long callsBefore, Map<String, Long> callCountsBefore,
+                        Map<PipelineMetrics.Outcome, Long> outcomesBefore) {
+
+        final FakeFecru fecru = plugin.fecru;
+        final double replaySeconds = (replayed - start) / 1e9;
+        final double totalSeconds = (drained - start) / 1e9;
+        final long remoteCalls = fecru.getTotalCalls() - callsBefore;
+
+        System.out.println(String.format("Replayed %d commits in %.1f s (%.1f/s), all processed after %.1f s (%.1f/s)%s.",
+                commits, replaySeconds, commits / Math.max(replaySeconds, 1e-9), totalSeconds,
+                commits / Math.max(totalSeconds, 1e-9),
+                plugin.journal.getOutstandingCount() > 0 ?
+                        ", " + plugin.journal.getOutstandingCount() + " still outstanding" : ""));
+        System.out.println();
+        printHistogram("Event thread (us)", submitLatency);
+        printHistogram("Commit to review (ms)", reviewLatency, 1000);
+        printHistogram("Admin page (ms)", adminLatency, 1000);
+        System.out.println(String.format("%-24s %d", "Not reviewed", submitted.size()));
+        System.out.println();
+
+        for (Map.Entry<PipelineMetrics.Outcome, Long> entry : getOutcomes(plugin.metrics).entrySet()) {
+            System.out.println(String.format("%-24s %d", entry.getKey().name(),
+                    entry.getValue() - outcomesBefore.get(entry.getKey())));
+        }
+        System.out.println();
+
+        System.out.println(String.format("%-48s %10d (%.2f per commit)", "Remote and local calls", remoteCalls,
+                remoteCalls / (double) Math.max(commits, 1)));
+        System.out.println(String.format("%-48s %10d", "Injected failures", fecru.getInjectedFailures()));
+        System.out.println(String.format("%-48s %10d", "Deferred commits requeued", plugin.deferredCommits.getResubmittedCount()));
+        for (RemoteCallGuard.Service service : plugin.guard.getServices()) {
+            final CircuitBreaker breaker = plugin.guard.getBreaker(service);
+            if (breaker.getTrips() > 0 || plugin.guard.getTimeouts(service) > 0 || plugin.guard.getRetries(service) > 0) {
+                System.out.println(String.format("  %-46s %d trips, %d timeouts, %d retries", service.getDisplayName(),
+                        breaker.getTrips(), plugin.guard.getTimeouts(service), plugin.guard.getRetries(service)));
+            }
+        }
+        for (Map.Entry<String, Long> entry : new TreeMap<String, Long>(fecru.getCallCounts()).entrySet()) {
+            final Long before = callCountsBefore.get(entry.getKey());
+            final long calls = entry.getValue() - (before == null ? 0 : before);
+            if (calls > 0) {
+                System.out.println(String.format("  %-46s %10d", entry.getKey(), calls));
+            }
+        }
+    }
+
+    private static void printHistogram(String name, LatencyHistogram histogram) {
+        printHistogram(name, histogram, 1);
+    }
+
+    private static void printHistogram(String name, LatencyHistogram histogram, long unit) {
+        System.out.println(String.format("%-24s count %8d  p50 %8d  p99 %8d  max %8d", name, histogram.getCount(),
+                histogram.getPercentile(50) / unit, histogram.getPercentile(99) / unit, histogram.getMax() / unit));
+    }
+
+    private static Map<PipelineMetrics.Outcome, Long> getOutcomes(PipelineMetrics metrics) {
+        final Map<PipelineMetrics.Outcome, Long> totals =
+                new EnumMap<PipelineMetrics.Outcome, Long>(PipelineMetrics.Outcome.class);
+        for (PipelineMetrics.Outcome outcome : metrics.getOutcomes()) {
+            totals.put(outcome, metrics.getTotal(outcome));
+        }
+        return totals;
+    }
+
+    private static List<long[]> readTrace(String file) throws IOException {
+        final List<long[]> lines = new ArrayList<long[]>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                final String[] fields = line.trim().split("\\s+");
+                if (fields.length == 2 && !line.startsWith("#")) {
+                    lines.add(new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1])});
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (lines.isEmpty()) {
+            throw new IOException("No commits in " + file);
+        }
+        return lines;
+    }
+
+    private String option(String name, String defaultValue) {
+        final String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+
+    private long longOption(String name, long defaultValue) {
+        return Long.parseLong(option(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Renders the admin page periodically, the way an administrator watching
+     * the queue would.
+     */
+    private class AdminPoller implements Runnable {
+
+        private final AdminServlet admin;
+        private final long intervalMillis;
+        private volatile boolean stopped;
+
+        AdminPoller(AdminServlet admin, long intervalMillis) {
+            this.admin = admin;
+            this.intervalMillis = intervalMillis;
+        }
+
+        public void run() {
+            final HttpServletRequest request = stub(HttpServletRequest.class);
+            final HttpServletResponse response = stub(HttpServletResponse.class);
+            while (!stopped && intervalMillis > 0) {
+                final long start = System.nanoTime();
+                try {
+                    admin.doGet(request, response);
+                } catch (Exception e) {
+                    System.err.println("Unable to render the admin page: " + e);
+                }
+                adminLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void stop() {
+            stopped = true;
+        }
+    }
+
+    /**
+     * @return  a request or response that has no session, an empty context
+     * path and discards whatever is written to it.
+     */
+    private static <T> T stub(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(LoadSimulation.class.getClassLoader(), new Class<?>[] {type},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getWriter".equals(method.getName())) {
+                            return new PrintWriter(new Writer() {
+                                public void write(char[] buf, int off, int len) {
+                                }
+
+                                public void flush() {
+                                }
+
+                                public void close() {
+                                }
+                            });
+                        } else if ("getContextPath".equals(method.getName())) {
+                            return "";
+                        }
+                        return null;
+                    }
+                }));
+    }
+}
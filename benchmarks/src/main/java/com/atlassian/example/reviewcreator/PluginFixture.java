@@ -0,0 +1,143 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wires the plugin's components together the way the plugin container does,
+ * but on top of a {@link FakeFecru} and an in-memory settings store, with
+ * local files in a temporary directory.
+ */
+class PluginFixture {
+
+    final FakeFecru fecru;
+    final ConfigurationManagerImpl config;
+    final File dataDirectory;
+    final CommitterIndex committerIndex;
+    final CommitWorkQueue workQueue;
+    final ChangesetCoalescer coalescer;
+    final ReviewApprover approver;
+    final ProjectIndex projectIndex;
+    final GroupMembershipCache groupMembership;
+    final OpenReviewCache openReviews;
+    final PipelineMetrics metrics;
+    final ReviewBackfill backfill;
+    final CommitJournal journal;
+    final ProcessedChangesetIndex processedChangesets;
+    final HolidayCalendars holidayCalendars;
+    final ReviewDecorator decorator;
+    final CacheWarmer cacheWarmer;
+    final RemoteCallGuard guard;
+    final DeferredCommits deferredCommits;
+    final CommitListener listener;
+    final AdminServlet admin;
+
+    /**
+     * @param settings  the plugin settings to start with; the run-as user is
+     * always {@link FakeFecru#ADMIN}.
+     */
+    PluginFixture(FakeFecru fecru, ConfigurationSnapshot settings) throws IOException {
+
+        this.fecru = fecru;
+        config = new ConfigurationManagerImpl(new MapSettings());
+        config.storeSnapshot(settings.toBuilder().setRunAsUser(FakeFecru.ADMIN).build());
+
+        dataDirectory = File.createTempFile("reviewcreator", "");
+        if (!dataDirectory.delete() || !dataDirectory.mkdir()) {
+            throw new IOException("Unable to create " + dataDirectory);
+        }
+
+        final PluginDataDirectory pluginData = new PluginDataDirectory(dataDirectory);
+        committerIndex = new CommitterIndex(config, fecru.userService, fecru.impersonator, pluginData);
+        journal = new CommitJournal(pluginData);
+        workQueue = new CommitWorkQueue(config, pluginData, journal);
+        coalescer = new ChangesetCoalescer(config, workQueue);
+        metrics = new PipelineMetrics();
+        guard = new RemoteCallGuard(config, fecru.impersonator);
+        approver = new ReviewApprover(config, fecru.reviewService, guard, metrics, pluginData);
+        projectIndex = new ProjectIndex(config, fecru.projectService, fecru.impersonator);
+        groupMembership = new GroupMembershipCache(config, fecru.userManager);
+        openReviews = new OpenReviewCache();
+        backfill = new ReviewBackfill(config, fecru.revisionService, fecru.impersonator, pluginData, journal);
+        processedChangesets = new ProcessedChangesetIndex(pluginData);
+        holidayCalendars = new HolidayCalendars(config);
+        decorator = new ReviewDecorator(fecru.impersonator);
+        cacheWarmer = new CacheWarmer(config, projectIndex, committerIndex, groupMembership, holidayCalendars);
+        deferredCommits = new DeferredCommits(guard, workQueue);
+        listener = new CommitListener(config, fecru.reviewService, fecru.revisionService, fecru.userService,
+                fecru.impersonator, fecru.searchService, committerIndex, workQueue, coalescer, approver,
+                projectIndex, groupMembership, openReviews, metrics, backfill, journal,
+                processedChangesets, holidayCalendars, decorator, guard, deferredCommits);
+        admin = new AdminServlet(config, fecru.projectService, fecru.impersonator, fecru.userService,
+                fecru.velocity, committerIndex, workQueue, projectIndex, groupMembership, metrics, backfill,
+                journal, processedChangesets, cacheWarmer, guard, deferredCommits);
+    }
+
+    /**
+     * @return  default settings with all of the fake projects enabled,
+     * reviews for everyone outside the fake groups, every commit flushed and
+     * approved immediately, and the default worker pool.
+     */
+    static ConfigurationSnapshot.Builder defaultSettings(FakeFecru fecru) {
+        return new ConfigurationSnapshot.Builder()
+                .setEnabledProjects(fecru.getProjectKeys())
+                .setCrucibleGroups(fecru.getGroups())
+                .setCreateMode(CreateMode.ALWAYS)
+                .setWorkerThreads(2)
+                .setQueueCapacity(1000)
+                .setLaneCapacity(250)
+                .setOverflowPolicy(OverflowPolicy.BLOCK)
+                .setCoalesceWindow(0)
+                .setApproveDelay(0)
+                .setApproveRetries(0)
+                .setGroupCacheTtl(15);
+    }
+
+    void destroy() {
+        workQueue.destroy();
+        coalescer.destroy();
+        approver.destroy();
+        groupMembership.destroy();
+        committerIndex.destroy();
+        backfill.destroy();
+        journal.destroy();
+        processedChangesets.destroy();
+        decorator.destroy();
+        cacheWarmer.destroy();
+        projectIndex.destroy();
+        deferredCommits.destroy();
+        guard.destroy();
+        delete(dataDirectory);
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class MapSettings implements PluginSettings {
+
+        private final Map<String, Object> store = new HashMap<String, Object>();
+
+        public synchronized Object get(String key) {
+            return store.get(key);
+        }
+
+        public synchronized Object put(String key, Object value) {
+            return store.put(key, value);
+        }
+
+        public synchronized Object remove(String key) {
+            return store.remove(key);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.atlassian.example.reviewcreator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-benchmarks for the string and date helpers that run for every
+ * commit. {@link #extractReviewIds(Blackhole)} and {@link #scanReviewIds()}
+ * find the same review ids, the former once per enabled project the way the
+ * listener used to, the latter in a single pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+    @Param({"10", "500"})
+    public int projectCount;
+
+    @Param({"1", "50"})
+    public int messageLines;
+
+    private List<String> projectKeys;
+    private ReviewIdScanner scanner;
+    private String message;
+    private Date start;
+
+    @Setup
+    public void setUp() {
+
+        projectKeys = new ArrayList<String>();
+        for (int i = 0; i < projectCount; i++) {
+            projectKeys.add(FakeFecru.projectKey(i));
+        }
+        scanner = new ReviewIdScanner(projectKeys);
+
+        final StringBuilder buf = new StringBuilder("\n\n");
+        for (int i = 0; i < messageLines; i++) {
+            buf.append("Line ").append(i).append(" of a change for ")
+                    .append(FakeFecru.projectKey(i % projectCount)).append('-').append(i)
+                    .append(", see build-1234 and 2010-02-03\n");
+        }
+        message = buf.toString();
+        start = new Date(1265212800000L); // a Wednesday
+    }
+
+    @Benchmark
+    public void extractReviewIds(Blackhole blackhole) {
+        for (String key : projectKeys) {
+            blackhole.consume(Utils.extractReviewIds(message, key));
+        }
+    }
+
+    @Benchmark
+    public Object scanReviewIds() {
+        return scanner.scan(message);
+    }
+
+    @Benchmark
+    public String firstNonEmptyLine() {
+        return Utils.firstNonEmptyLine(message);
+    }
+
+    @Benchmark
+    public Date addWorkingDays() {
+        return DateHelper.addWorkingDays(start, 5);
+    }
+}
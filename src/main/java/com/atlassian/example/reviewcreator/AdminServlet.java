@@ -1,6 +1,7 @@
 package com.atlassian.example.reviewcreator;
 
 import com.atlassian.crucible.spi.data.ProjectData;
+import com.atlassian.crucible.spi.data.UserData;
 import com.atlassian.crucible.spi.services.ImpersonationService;
 import com.atlassian.crucible.spi.services.NotFoundException;
 import com.atlassian.crucible.spi.services.Operation;
@@ -8,8 +9,6 @@ import com.atlassian.crucible.spi.services.ProjectService;
 import com.atlassian.crucible.spi.services.ServerException;
 import com.atlassian.crucible.spi.services.UserService;
 import com.atlassian.fisheye.plugin.web.helpers.VelocityHelper;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
 import org.apache.commons.lang.StringUtils;
 
@@ -17,39 +16,91 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class AdminServlet extends HttpServlet {
 
+    private static final String INVALID_USERNAMES = "reviewcreator.invalidUsernames";
+    private static final String INVALID_BRANCH_RULES = "reviewcreator.invalidBranchRules";
+    private static final int VALIDATION_THREADS = 8;
+    /**
+     * When more usernames than this are missing from the committer index,
+     * they are validated against a single listing of the user directory
+     * rather than looked up one by one.
+     */
+    private static final int MAX_USER_LOOKUPS = 50;
+
     private final ProjectService projectService;
     private final ImpersonationService impersonator;
     private final UserService userService;
     private final VelocityHelper velocity;
     private final ConfigurationManager config;
+    private final CommitterIndex committerIndex;
+    private final CommitWorkQueue workQueue;
+    private final ProjectIndex projectIndex;
+    private final GroupMembershipCache groupMembership;
+    private final PipelineMetrics metrics;
+    private final ReviewBackfill backfill;
+    private final CommitJournal journal;
+    private final ProcessedChangesetIndex processedChangesets;
+    private final CacheWarmer cacheWarmer;
+    private final RemoteCallGuard guard;
+    private final DeferredCommits deferredCommits;
 
     public AdminServlet(
             ConfigurationManager config,
             ProjectService projectService,
             ImpersonationService impersonator,
             UserService userService,
-            VelocityHelper velocity) {
+            VelocityHelper velocity,
+            CommitterIndex committerIndex,
+            CommitWorkQueue workQueue,
+            ProjectIndex projectIndex,
+            GroupMembershipCache groupMembership,
+            PipelineMetrics metrics,
+            ReviewBackfill backfill,
+            CommitJournal journal,
+            ProcessedChangesetIndex processedChangesets,
+            CacheWarmer cacheWarmer,
+            RemoteCallGuard guard,
+            DeferredCommits deferredCommits) {
         
         this.projectService = projectService;
         this.impersonator = impersonator;
         this.userService = userService;
         this.velocity = velocity;
         this.config = config;
+        this.committerIndex = committerIndex;
+        this.workQueue = workQueue;
+        this.projectIndex = projectIndex;
+        this.groupMembership = groupMembership;
+        this.metrics = metrics;
+        this.backfill = backfill;
+        this.journal = journal;
+        this.processedChangesets = processedChangesets;
+        this.cacheWarmer = cacheWarmer;
+        this.guard = guard;
+        this.deferredCommits = deferredCommits;
     }
 
     public void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -57,7 +108,8 @@ public class AdminServlet extends HttpServlet {
 
         final Map<String, Object> params = new HashMap<String, Object>();
 
-        final String username = config.loadRunAsUser();
+        final ConfigurationSnapshot settings = config.loadSnapshot();
+        final String username = settings.getRunAsUser();
         if (!StringUtils.isEmpty(username)) {
             params.put("username", username);
 
@@ -69,11 +121,43 @@ public class AdminServlet extends HttpServlet {
             });
 
             params.put("contextPath", request.getContextPath());
-            params.put("createMode", config.loadCreateMode().name());
-            params.put("committerNames", config.loadCrucibleUserNames());
-            params.put("groupNames", config.loadCrucibleGroups());
-            params.put("iterative", config.loadIterative());
+            params.put("createMode", settings.getCreateMode().name());
+            params.put("committerNames", settings.getCrucibleUserNames());
+            params.put("groupNames", settings.getCrucibleGroups());
+            params.put("iterative", settings.isIterative());
+            params.put("workerThreads", settings.getWorkerThreads());
+            params.put("queueCapacity", settings.getQueueCapacity());
+            params.put("laneCapacity", settings.getLaneCapacity());
+            params.put("overflowPolicy", settings.getOverflowPolicy().name());
+            params.put("workQueue", workQueue);
+            params.put("journal", journal);
+            params.put("processedChangesets", processedChangesets);
+            params.put("coalesceWindow", settings.getCoalesceWindow());
+            params.put("approveDelay", settings.getApproveDelay());
+            params.put("approveRetries", settings.getApproveRetries());
+            params.put("groupCacheTtl", settings.getGroupCacheTtl());
+            params.put("groupMembership", groupMembership);
+            params.put("holidays", settings.getHolidays());
+            params.put("branchRules", settings.getBranchRules());
+            params.put("metrics", metrics);
+            params.put("reviewLag", metrics.getReviewLag().getSummaries());
+            params.put("lagSlo", settings.getLagSlo());
+            params.put("lagSloSeconds", settings.getLagSlo() * 60);
+            params.put("cacheWarmer", cacheWarmer);
+            params.put("guard", guard);
+            params.put("remoteTimeouts", settings.getRemoteTimeouts());
+            params.put("deferredCommits", deferredCommits);
+            params.put("committerIndex", committerIndex);
+            params.put("backfill", backfill.getJob());
             params.put("stringUtils", new StringUtils());
+
+            final HttpSession session = request.getSession(false);
+            if (session != null) {
+                params.put("invalidUsernames", session.getAttribute(INVALID_USERNAMES));
+                session.removeAttribute(INVALID_USERNAMES);
+                params.put("invalidBranchRules", session.getAttribute(INVALID_BRANCH_RULES));
+                session.removeAttribute(INVALID_BRANCH_RULES);
+            }
         }
 
         response.setContentType("text/html");
@@ -85,10 +169,12 @@ public class AdminServlet extends HttpServlet {
             throws ServletException, IOException {
 
         final String username = req.getParameter("username");
-        config.storeRunAsUser(username);
+        final ConfigurationSnapshot current = config.loadSnapshot();
+        final ConfigurationSnapshot.Builder settings = current.toBuilder().setRunAsUser(username);
 
         final List<String> enabled = req.getParameterValues("enabled") == null ?
                 Collections.<String>emptyList() : Arrays.asList(req.getParameterValues("enabled"));
+        final List<String> invalidUsernames = new ArrayList<String>();
 
         impersonator.doAsUser(null, username, new Operation<Void, RuntimeException>() {
             public Void perform() throws RuntimeException {
@@ -97,51 +183,238 @@ public class AdminServlet extends HttpServlet {
                 for (Project p : loadProjects()) {
                     projects.add(new Project(p.getId(), p.getKey(), p.getName(), p.getModerator(), enabled.contains(p.getKey())));
                 }
-                storeProjects(projects);
+                settings.setEnabledProjects(getEnabledKeys(projects));
 
-                config.storeCreateMode(CreateMode.valueOf(
+                settings.setCreateMode(CreateMode.valueOf(
                         Utils.defaultIfNull(req.getParameter("createMode"), CreateMode.ALWAYS.name())));
 
                 final String[] committerNames = StringUtils.split(req.getParameter("committerNames"), ",    \n\r");
-                config.storeCrucibleUserNames(committerNames == null ? Collections.<String>emptyList() :
-                        getValidatedUsernames(Lists.newArrayList(committerNames)));
+                settings.setCrucibleUserNames(committerNames == null ? Collections.<String>emptyList() :
+                        getValidatedUsernames(username, Arrays.asList(committerNames), invalidUsernames));
 
                 final String[] groupNames = StringUtils.split(req.getParameter("groupNames"), ",    \n\r");
-                config.storeCrucibleGroups(groupNames == null ? Collections.<String>emptyList() :
+                settings.setCrucibleGroups(groupNames == null ? Collections.<String>emptyList() :
                         Lists.newArrayList(groupNames));
 
-                config.storeIterative(req.getParameter("iterative") != null);
+                settings.setIterative(req.getParameter("iterative") != null);
+
+                settings.setWorkerThreads(parseInt(req.getParameter("workerThreads"), current.getWorkerThreads()));
+                settings.setQueueCapacity(parseInt(req.getParameter("queueCapacity"), current.getQueueCapacity()));
+                settings.setLaneCapacity(parseInt(req.getParameter("laneCapacity"), current.getLaneCapacity()));
+                settings.setOverflowPolicy(OverflowPolicy.valueOf(
+                        Utils.defaultIfNull(req.getParameter("overflowPolicy"), OverflowPolicy.BLOCK.name())));
+                settings.setCoalesceWindow(parseLong(req.getParameter("coalesceWindow"), current.getCoalesceWindow()));
+                settings.setApproveDelay(parseLong(req.getParameter("approveDelay"), current.getApproveDelay()));
+                settings.setApproveRetries((int) parseLong(req.getParameter("approveRetries"), current.getApproveRetries()));
+                settings.setGroupCacheTtl(parseLong(req.getParameter("groupCacheTtl"), current.getGroupCacheTtl()));
+                settings.setLagSlo(parseLong(req.getParameter("lagSlo"), current.getLagSlo()));
+
+                final Map<RemoteCallGuard.Service, Long> timeouts =
+                        new EnumMap<RemoteCallGuard.Service, Long>(RemoteCallGuard.Service.class);
+                for (RemoteCallGuard.Service service : RemoteCallGuard.Service.values()) {
+                    timeouts.put(service, (long) parseInt(req.getParameter("timeout." + service.name()),
+                            (int) current.getRemoteTimeout(service)));
+                }
+                settings.setRemoteTimeouts(timeouts);
+
+                // one calendar per line, dates are separated by commas and whitespace:
+                final String[] holidays = StringUtils.split(req.getParameter("holidays"), "\n\r");
+                settings.setHolidays(holidays == null ? Collections.<String>emptyList() :
+                        Lists.newArrayList(holidays));
+
+                final String[] branchRules = StringUtils.split(req.getParameter("branchRules"), "\n\r");
+                settings.setBranchRules(branchRules == null ? Collections.<String>emptyList() :
+                        Lists.newArrayList(branchRules));
                 return null;
             }
         });
+        // make all changes visible at once:
+        config.storeSnapshot(settings.build());
+        workQueue.reconfigure();
+        cacheWarmer.warmAsync();
+
+        if (!invalidUsernames.isEmpty()) {
+            req.getSession().setAttribute(INVALID_USERNAMES, invalidUsernames);
+        }
+        final List<String> invalidBranchRules = new BranchRules(config.loadBranchRules()).getInvalidRules();
+        if (!invalidBranchRules.isEmpty()) {
+            req.getSession().setAttribute(INVALID_BRANCH_RULES, invalidBranchRules);
+        }
+
+        if (req.getParameter("refreshGroups") != null) {
+            groupMembership.refreshAsync();
+        }
+
+        if (req.getParameter("refreshCommitters") != null) {
+            final String[] refreshUsers = StringUtils.split(req.getParameter("refreshUsers"), ",    \n\r");
+            if (refreshUsers == null) {
+                committerIndex.refreshAsync();
+            } else {
+                for (String user : refreshUsers) {
+                    committerIndex.invalidateUser(user);
+                }
+            }
+        }
+
+        if (req.getParameter("startBackfill") != null) {
+            backfill.start(req.getParameter("backfillRepository"),
+                    req.getParameter("backfillFrom"), req.getParameter("backfillTo"),
+                    parseInt(req.getParameter("backfillThreads"), 2),
+                    parseInt(req.getParameter("backfillRate"), 5));
+        } else if (req.getParameter("cancelBackfill") != null) {
+            backfill.cancel();
+        } else if (req.getParameter("resumeBackfill") != null) {
+            backfill.resume();
+        }
 
         resp.sendRedirect("./reviewcreatoradmin");
     }
 
     /**
+     * @return  the positive integer value of the specified form field, or
+     * <code>defaultValue</code> when it is missing or not a positive integer.
+     */
+    private int parseInt(String value, int defaultValue) {
+        try {
+            final int parsed = Integer.parseInt(StringUtils.trim(value));
+            return parsed > 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return  the non-negative value of the specified form field, or
+     * <code>defaultValue</code> when it is missing or not a number.
+     */
+    private long parseLong(String value, long defaultValue) {
+        try {
+            final long parsed = Long.parseLong(StringUtils.trim(value));
+            return parsed >= 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Names are first checked against the users known to the committer
+     * index, if it was read from the user directory since the plugin
+     * started, as the saved one may list users that were removed since. The
+     * remaining ones are looked up concurrently, or, when there
+     * are many, checked against a single listing of the user directory.
+     * <p>
+     * This method must be run as a valid Crucible user.
+     * </p>
+     *
+     * @param runAsUser the user to look up users as on the worker threads.
      * @param crucibleUsernames
-     * @return  the (sub)set of usernames that exist in the system. The names
-     * present in the specified list that are not present in the returned list
-     * represent invalid usernames.
+     * @param invalid   receives the names that are not Crucible users.
+     * @return  the (sub)set of usernames that exist in the system, without
+     * duplicates.
+     */
+    private List<String> getValidatedUsernames(String runAsUser, Collection<String> crucibleUsernames,
+                                               List<String> invalid) {
+
+        final Set<String> names = new LinkedHashSet<String>(crucibleUsernames);
+        final Set<String> indexed = committerIndex.isBuiltSinceStart() ? committerIndex.getUsernames() : null;
+        final List<String> unknown = new ArrayList<String>();
+        for (String name : names) {
+            if (indexed == null || !indexed.contains(name)) {
+                unknown.add(name);
+            }
+        }
+
+        final Set<String> found = unknown.size() > MAX_USER_LOOKUPS ?
+                loadAllUsernames(runAsUser) : lookUpUsers(runAsUser, unknown);
+
+        final List<String> valid = new ArrayList<String>();
+        for (String name : names) {
+            if ((indexed != null && indexed.contains(name)) || found.contains(name)) {
+                valid.add(name);
+            } else {
+                invalid.add(name);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * @return  the names of all Crucible users.
+     */
+    private Set<String> loadAllUsernames(String runAsUser) {
+        try {
+            return impersonator.doAsUser(null, runAsUser, new Operation<Set<String>, ServerException>() {
+                public Set<String> perform() throws ServerException {
+                    final Set<String> usernames = new HashSet<String>();
+                    for (UserData user : userService.getAllUsers()) {
+                        usernames.add(user.getUserName());
+                    }
+                    return usernames;
+                }
+            });
+        } catch (ServerException se) {
+            throw new RuntimeException("Error listing Crucible users: " + se.getMessage(), se);
+        }
+    }
+
+    /**
+     * Looks up the specified users concurrently.
+     *
+     * @return  the names of the specified users that exist.
      */
-    private Collection<String> getValidatedUsernames(Collection<String> crucibleUsernames) {
-
-        return Collections2.filter(crucibleUsernames, new Predicate<String>() {
-            public boolean apply(String username) {
-                try {
-                    userService.getUser(username);
-                    return true;
-                } catch (NotFoundException nfe) {
-                    // Not very good practice to use exceptions for flow
-                    // control, but it's the only way to detect the existence
-                    // of a Crucible user.
-                    return false;
-                } catch (ServerException se) {
-                    throw new RuntimeException(String.format(
-                            "Error validating Crucible user \"%s\": %s", username, se.getMessage()), se);
+    private Set<String> lookUpUsers(final String runAsUser, Collection<String> usernames) {
+
+        final Set<String> found = new HashSet<String>();
+        if (usernames.isEmpty()) {
+            return found;
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(VALIDATION_THREADS, usernames.size()), new NamedThreadFactory("user-validation"));
+        try {
+            final Map<String, Future<Boolean>> lookups = new LinkedHashMap<String, Future<Boolean>>();
+            for (final String username : usernames) {
+                lookups.put(username, pool.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return userExists(runAsUser, username);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<Boolean>> lookup : lookups.entrySet()) {
+                if (lookup.getValue().get()) {
+                    found.add(lookup.getKey());
                 }
             }
-        });
+            return found;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while validating Crucible users.", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ?
+                    (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private boolean userExists(String runAsUser, final String username) {
+        try {
+            return impersonator.doAsUser(null, runAsUser, new Operation<Boolean, ServerException>() {
+                public Boolean perform() throws ServerException {
+                    try {
+                        userService.getUser(username);
+                        return true;
+                    } catch (NotFoundException nfe) {
+                        // Not very good practice to use exceptions for flow
+                        // control, but it's the only way to detect the
+                        // existence of a Crucible user.
+                        return false;
+                    }
+                }
+            });
+        } catch (ServerException se) {
+            throw new RuntimeException(String.format(
+                    "Error validating Crucible user \"%s\": %s", username, se.getMessage()), se);
+        }
     }
 
     /**
@@ -152,7 +425,7 @@ public class AdminServlet extends HttpServlet {
      */
     private Set<Project> loadProjects() {
 
-        final List<String> enabledKeys = config.loadEnabledProjects();
+        final Set<String> enabledKeys = config.loadSnapshot().getEnabledProjects();
 
         final Set<Project> projects = new TreeSet<Project>(new Comparator<Project>() {
             public int compare(Project p1, Project p2) {
@@ -166,11 +439,12 @@ public class AdminServlet extends HttpServlet {
     }
 
     /**
-     * Stores the projects for which auto review creation is enabled.
+     * Returns the keys of the projects for which auto review creation is
+     * enabled.
      *
      * @param projects
      */
-    private void storeProjects(Set<Project> projects) {
+    private List<String> getEnabledKeys(Set<Project> projects) {
 
         final List<String> enabled = new ArrayList<String>();
         for (Project p : projects) {
@@ -178,6 +452,6 @@ public class AdminServlet extends HttpServlet {
                 enabled.add(p.getKey());
             }
         }
-        config.storeEnabledProjects(enabled);
+        return enabled;
     }
 }
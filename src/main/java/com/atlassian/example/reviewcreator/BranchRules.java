@@ -0,0 +1,214 @@
+package com.atlassian.example.reviewcreator;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * <p>
+ * Decides from its branches whether a changeset gets a review, before any
+ * committer mapping, review search or impersonation work is done for it.
+ * </p>
+ * <p>
+ * Rules are configured one line per project: a project key and a colon,
+ * followed by rules separated by whitespace. A line without a project key
+ * holds rules for all projects, which are combined with the project's own.
+ * A rule is <code>+</code> (include) or <code>-</code> (exclude), followed
+ * by a glob, in which <code>*</code> matches any characters and
+ * <code>?</code> matches one, or by a regular expression between slashes.
+ * For example:
+ * </p>
+ * <pre>
+ * -master -master_raptor2
+ * CR: +feature/* +/CR-\d+.*&#47; -release/*
+ * </pre>
+ * <p>
+ * A changeset is skipped when it is not on any branch, when any of its
+ * branches is excluded, or when there are include rules and none of its
+ * branches is included. All rules of a project are compiled into a single
+ * include and a single exclude pattern. Instances are immutable and should be
+ * rebuilt only when the configuration changes.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class BranchRules {
+
+    /**
+     * Skips commits to the mainline branches.
+     */
+    static final List<String> DEFAULT_RULES = ImmutableList.of("-master -master_raptor2");
+
+    private final CompiledRules global;
+    private final Map<String, CompiledRules> byProject = new HashMap<String, CompiledRules>();
+    private final List<String> invalidRules = new ArrayList<String>();
+
+    public BranchRules(Collection<String> lines) {
+
+        final Map<String, List<String>> includes = new HashMap<String, List<String>>();
+        final Map<String, List<String>> excludes = new HashMap<String, List<String>>();
+        for (String line : lines) {
+            final int colon = line.indexOf(':');
+            final String prefix = colon < 0 ? "" : line.substring(0, colon).trim();
+            // a colon inside a regular expression does not end a project key:
+            final String projectKey = StringUtils.isAlphanumeric(prefix.replace('_', 'X')) ? prefix : "";
+            final String[] rules = StringUtils.split(projectKey.length() > 0 ? line.substring(colon + 1) : line);
+            for (String rule : rules == null ? new String[0] : rules) {
+                final String regex = toRegex(rule);
+                if (regex == null) {
+                    invalidRules.add(rule);
+                    continue;
+                }
+                final Map<String, List<String>> target = rule.charAt(0) == '+' ? includes : excludes;
+                List<String> regexes = target.get(projectKey);
+                if (regexes == null) {
+                    regexes = new ArrayList<String>();
+                    target.put(projectKey, regexes);
+                }
+                regexes.add(regex);
+            }
+        }
+
+        global = new CompiledRules(includes.get(""), excludes.get(""));
+        for (String projectKey : union(includes.keySet(), excludes.keySet())) {
+            if (projectKey.length() > 0) {
+                byProject.put(projectKey, new CompiledRules(
+                        concat(includes.get(""), includes.get(projectKey)),
+                        concat(excludes.get(""), excludes.get(projectKey))));
+            }
+        }
+    }
+
+    /**
+     * @return  {@code true} if a changeset on the specified branches should
+     * be reviewed.
+     */
+    public boolean accepts(String projectKey, Set<String> branches) {
+        final CompiledRules rules = byProject.get(projectKey);
+        return (rules == null ? global : rules).accepts(branches);
+    }
+
+    /**
+     * @return  the rules that were ignored because they lack a
+     * <code>+</code> or <code>-</code>, or hold an invalid regular
+     * expression.
+     */
+    public List<String> getInvalidRules() {
+        return invalidRules;
+    }
+
+    /**
+     * @return  the regular expression for the rule, without its
+     * <code>+</code> or <code>-</code>, or <code>null</code> if the rule is
+     * invalid.
+     */
+    static String toRegex(String rule) {
+
+        if (rule.length() < 2 || (rule.charAt(0) != '+' && rule.charAt(0) != '-')) {
+            return null;
+        }
+        final String pattern = rule.substring(1);
+        if (pattern.length() > 2 && pattern.startsWith("/") && pattern.endsWith("/")) {
+            final String regex = pattern.substring(1, pattern.length() - 1);
+            try {
+                Pattern.compile(regex);
+                return regex;
+            } catch (PatternSyntaxException e) {
+                return null;
+            }
+        }
+
+        final StringBuilder regex = new StringBuilder();
+        int literal = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literal) {
+                    regex.append(Pattern.quote(pattern.substring(literal, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literal = i + 1;
+            }
+        }
+        if (literal < pattern.length()) {
+            regex.append(Pattern.quote(pattern.substring(literal)));
+        }
+        return regex.toString();
+    }
+
+    private static List<String> concat(List<String> first, List<String> second) {
+        final List<String> result = new ArrayList<String>();
+        if (first != null) {
+            result.addAll(first);
+        }
+        if (second != null) {
+            result.addAll(second);
+        }
+        return result;
+    }
+
+    private static Collection<String> union(Set<String> first, Set<String> second) {
+        final List<String> result = new ArrayList<String>(first);
+        for (String key : second) {
+            if (!first.contains(key)) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The compiled rules of one project.
+     */
+    private static class CompiledRules {
+
+        private final Pattern include;
+        private final Pattern exclude;
+
+        CompiledRules(List<String> includes, List<String> excludes) {
+            include = compile(includes);
+            exclude = compile(excludes);
+        }
+
+        boolean accepts(Set<String> branches) {
+
+            if (branches.isEmpty()) {
+                return false;
+            }
+            boolean included = include == null;
+            for (String branch : branches) {
+                if (exclude != null && exclude.matcher(branch).matches()) {
+                    return false;
+                }
+                included = included || include.matcher(branch).matches();
+            }
+            return included;
+        }
+
+        /**
+         * @return  a single pattern matching any of the regular expressions,
+         * or <code>null</code> if there are none.
+         */
+        private static Pattern compile(List<String> regexes) {
+            if (regexes == null || regexes.isEmpty()) {
+                return null;
+            }
+            final StringBuilder alternation = new StringBuilder();
+            for (String regex : regexes) {
+                if (alternation.length() > 0) {
+                    alternation.append('|');
+                }
+                alternation.append("(?:").append(regex).append(')');
+            }
+            return Pattern.compile(alternation.toString());
+        }
+    }
+}
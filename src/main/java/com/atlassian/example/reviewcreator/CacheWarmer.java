@@ -0,0 +1,165 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.crucible.spi.data.ProjectData;
+import com.atlassian.crucible.spi.data.UserData;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * Builds the caches that review creation depends on in the background, so
+ * that the first commits after the plugin is enabled or its configuration
+ * changes do not pay for them: the project index, the committer index, the
+ * group memberships of all committers to enabled repositories, and the
+ * working day calendars.
+ * </p>
+ * <p>
+ * A warm-up starts when the plugin is enabled and whenever
+ * {@link #warmAsync()} is called, typically after the configuration was
+ * saved. Requests made while a warm-up is running are combined into a
+ * single follow-up. Until the first warm-up completed, the caches are built
+ * on demand by whichever commit needs them first, as before.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class CacheWarmer implements DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(CacheWarmer.class);
+
+    private final ConfigurationManager config;
+    private final ProjectIndex projectIndex;
+    private final CommitterIndex committerIndex;
+    private final GroupMembershipCache groupMembership;
+    private final HolidayCalendars holidayCalendars;
+    private final ExecutorService executor;
+    private final AtomicBoolean requested = new AtomicBoolean();
+
+    private volatile boolean running;
+    private volatile boolean ready;
+    private volatile Date lastCompleted;
+    private volatile long lastDurationMillis;
+    private volatile String lastError;
+
+    public CacheWarmer(ConfigurationManager config,
+            ProjectIndex projectIndex,
+            CommitterIndex committerIndex,
+            GroupMembershipCache groupMembership,
+            HolidayCalendars holidayCalendars) {
+
+        this.config = config;
+        this.projectIndex = projectIndex;
+        this.committerIndex = committerIndex;
+        this.groupMembership = groupMembership;
+        this.holidayCalendars = holidayCalendars;
+        this.executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("cache-warmer"));
+        warmAsync();
+    }
+
+    /**
+     * Schedules a warm-up on the warmer's background thread and returns
+     * immediately. Does nothing if one is scheduled already.
+     */
+    public void warmAsync() {
+        if (!requested.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    requested.set(false);
+                    warm();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            requested.set(false);
+        }
+    }
+
+    /**
+     * @return  <code>true</code> if the caches were warmed up since the
+     * plugin was enabled.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return  when the last warm-up completed, or <code>null</code> if none
+     * did.
+     */
+    public Date getLastCompleted() {
+        return lastCompleted;
+    }
+
+    public long getLastDurationMillis() {
+        return lastDurationMillis;
+    }
+
+    /**
+     * @return  the error that aborted the last warm-up, or <code>null</code>
+     * if it succeeded.
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private void warm() {
+
+        if (StringUtils.isEmpty(config.loadRunAsUser())) {
+            return;
+        }
+        running = true;
+        final long start = System.currentTimeMillis();
+        try {
+            projectIndex.refresh();
+            final List<ProjectData> projects = projectIndex.getEnabledProjects();
+            committerIndex.warm();
+
+            final Set<String> committers = new HashSet<String>();
+            for (ProjectData project : projects) {
+                for (UserData user : committerIndex.getCommitterMappings(project.getDefaultRepositoryName()).values()) {
+                    committers.add(user.getUserName());
+                }
+            }
+            for (String username : committers) {
+                groupMembership.isInAnyGroup(username);
+            }
+            for (ProjectData project : projects) {
+                holidayCalendars.getCalendar(project.getKey());
+            }
+
+            lastDurationMillis = System.currentTimeMillis() - start;
+            lastCompleted = new Date();
+            lastError = null;
+            ready = true;
+            logger.info(String.format("Warmed up the caches for %d projects and %d committers in %d ms.",
+                    projects.size(), committers.size(), lastDurationMillis));
+        } catch (Exception e) {
+            lastError = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+            logger.warn("Unable to warm up the caches: " + lastError, e);
+        } finally {
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.crucible.spi.data.ProjectData;
+import com.atlassian.fisheye.spi.data.ChangesetDataFE;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Groups changesets that arrive for the same repository and branch within a
+ * short window, so that a push of many commits results in a single review
+ * operation (one search, one create or append call and one comment) instead
+ * of one per changeset.
+ * </p>
+ * <p>
+ * The window starts when the first changeset of a branch arrives. When the
+ * batch reaches {@link #MAX_BATCH_SIZE} changesets, it is handed to the
+ * registered {@link Flusher} right away, on the caller's thread. When the
+ * window closes, the batch is flushed on its repository's lane of the
+ * {@link CommitWorkQueue}, so that it is processed by the queue's workers,
+ * in order with the repository's other commits, rather than by the thread
+ * that keeps time. A window of 0 disables coalescing: every changeset is
+ * flushed immediately, on the caller's thread.
+ * </p>
+ * <p>
+ * At most {@link #MAX_OPEN_BATCHES} branches have an open window at a time;
+ * changesets of further branches are flushed immediately. Open batches are
+ * flushed when the plugin stops.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class ChangesetCoalescer implements DisposableBean {
+
+    /**
+     * Creates or appends to a review for a batch of changesets on the same
+     * branch, in commit order.
+     */
+    public interface Flusher {
+        void flush(String repoKey, ProjectData project, List<ChangesetDataFE> changesets);
+    }
+
+    static final int MAX_BATCH_SIZE = 100;
+    static final int MAX_OPEN_BATCHES = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(ChangesetCoalescer.class);
+
+    private final ConfigurationManager config;
+    private final CommitWorkQueue workQueue;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+    private volatile Flusher flusher;
+
+    public ChangesetCoalescer(ConfigurationManager config, CommitWorkQueue workQueue) {
+        this.config = config;
+        this.workQueue = workQueue;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("coalescer"));
+    }
+
+    public void setFlusher(Flusher flusher) {
+        this.flusher = flusher;
+    }
+
+    /**
+     * Adds a changeset to the batch of its repository and branch, starting a
+     * new coalescing window when there is no open batch. When there are too
+     * many open batches already, the changeset is flushed by itself instead.
+     */
+    public void add(String repoKey, ProjectData project, ChangesetDataFE cs) {
+
+        final long window = config.loadCoalesceWindow();
+        if (window <= 0) {
+            flusher.flush(repoKey, project, Collections.singletonList(cs));
+            return;
+        }
+
+        final String key = repoKey + "\u0000" + (cs.getBranches().isEmpty() ? "" : cs.getBranches().iterator().next());
+        final Batch full;
+        synchronized (batches) {
+            Batch batch = batches.get(key);
+            if (batch == null && batches.size() >= MAX_OPEN_BATCHES) {
+                full = new Batch(key, repoKey, project);
+                full.changesets.add(cs);
+            } else if (batch == null) {
+                batch = new Batch(key, repoKey, project);
+                batches.put(key, batch);
+                scheduler.schedule(batch, window, TimeUnit.MILLISECONDS);
+                batch.changesets.add(cs);
+                full = null;
+            } else {
+                batch.changesets.add(cs);
+                if (batch.changesets.size() >= MAX_BATCH_SIZE) {
+                    batches.remove(key);
+                    full = batch;
+                } else {
+                    full = null;
+                }
+            }
+        }
+        if (full != null) {
+            full.flush();
+        }
+    }
+
+    /**
+     * @return  the number of branches with an open coalescing window.
+     */
+    public int getOpenBatches() {
+        synchronized (batches) {
+            return batches.size();
+        }
+    }
+
+    /**
+     * Stops the coalescing windows and flushes the open batches on the
+     * calling thread.
+     */
+    public void destroy() {
+
+        scheduler.shutdownNow();
+        final List<Batch> open;
+        synchronized (batches) {
+            open = new ArrayList<Batch>(batches.values());
+            batches.clear();
+        }
+        if (!open.isEmpty()) {
+            logger.info(String.format("Flushing %d open batches of changesets.", open.size()));
+        }
+        for (Batch batch : open) {
+            batch.flush();
+        }
+    }
+
+    private class Batch implements Runnable {
+
+        private final String key;
+        private final String repoKey;
+        private final ProjectData project;
+        private final List<ChangesetDataFE> changesets = new ArrayList<ChangesetDataFE>();
+
+        Batch(String key, String repoKey, ProjectData project) {
+            this.key = key;
+            this.repoKey = repoKey;
+            this.project = project;
+        }
+
+        /**
+         * Invoked when the coalescing window closes. Does nothing if the
+         * batch was already flushed because it filled up.
+         */
+        public void run() {
+            synchronized (batches) {
+                if (batches.get(key) != this) {
+                    return;
+                }
+                batches.remove(key);
+            }
+            final boolean queued = workQueue.execute(repoKey, new Runnable() {
+                public void run() {
+                    flush();
+                }
+            });
+            if (!queued) {
+                // shutting down:
+                flush();
+            }
+        }
+
+        void flush() {
+            try {
+                flusher.flush(repoKey, project, changesets);
+            } catch (RuntimeException e) {
+                logger.error(String.format("Unable to process %d coalesced changesets of repository %s: %s",
+                        changesets.size(), repoKey, e.getMessage()), e);
+            }
+        }
+    }
+}
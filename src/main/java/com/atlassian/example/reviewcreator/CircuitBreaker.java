@@ -0,0 +1,139 @@
+package com.atlassian.example.reviewcreator;
+
+/**
+ * <p>
+ * Tracks the health of one remote service and fails calls to it fast while
+ * it is unhealthy, rather than letting every caller wait for it to time out.
+ * </p>
+ * <p>
+ * The breaker starts {@link State#CLOSED closed}. After
+ * {@link #FAILURE_THRESHOLD} consecutive failures it opens, and
+ * {@link #allowRequest} rejects all calls until the open interval has
+ * passed. Then a single trial call is let through: if it succeeds the
+ * breaker closes again, if it fails the breaker opens again for twice as
+ * long, up to {@link #MAX_OPEN_MILLIS}.
+ * </p>
+ * <p>
+ * Times are passed in by the caller, in milliseconds.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        /**
+         * Calls are let through.
+         */
+        CLOSED,
+        /**
+         * Calls are rejected.
+         */
+        OPEN,
+        /**
+         * The open interval has passed and a trial call is, or may be, in
+         * flight; other calls are still rejected.
+         */
+        HALF_OPEN
+    }
+
+    static final int FAILURE_THRESHOLD = 5;
+    static final long MIN_OPEN_MILLIS = 15 * 1000L;
+    static final long MAX_OPEN_MILLIS = 5 * 60 * 1000L;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openMillis = MIN_OPEN_MILLIS;
+    private long openUntil;
+    private boolean trialInFlight;
+    private long rejected;
+    private long trips;
+
+    /**
+     * @return  {@code true} if a call may be made now. A caller that was
+     * allowed must report the call's result to {@link #recordSuccess} or
+     * {@link #recordFailure}.
+     */
+    public synchronized boolean allowRequest(long now) {
+
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN && now >= openUntil) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN && !trialInFlight) {
+            trialInFlight = true;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        openMillis = MIN_OPEN_MILLIS;
+        trialInFlight = false;
+    }
+
+    /**
+     * Reports that an allowed call was not made after all, without it
+     * counting either way.
+     */
+    public synchronized void release() {
+        trialInFlight = false;
+    }
+
+    public synchronized void recordFailure(long now) {
+
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            openMillis = Math.min(MAX_OPEN_MILLIS, openMillis * 2);
+            open(now);
+        } else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+            open(now);
+        }
+    }
+
+    /**
+     * @return  the breaker's state as {@link #allowRequest} would see it
+     * now: {@link State#HALF_OPEN} once the open interval has passed.
+     */
+    public synchronized State getState(long now) {
+        return state == State.OPEN && now >= openUntil ? State.HALF_OPEN : state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return  until when the breaker rejects calls; only meaningful while
+     * it is open.
+     */
+    public synchronized long getOpenUntil() {
+        return openUntil;
+    }
+
+    /**
+     * @return  the number of calls that were rejected.
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return  the number of times the breaker opened.
+     */
+    public synchronized long getTrips() {
+        return trips;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openUntil = now + openMillis;
+        trips++;
+    }
+}
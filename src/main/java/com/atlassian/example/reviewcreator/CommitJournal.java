@@ -0,0 +1,343 @@
+package com.atlassian.example.reviewcreator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Append-only journal of the commits that were received but not yet run
+ * through review creation, so that no commit is lost when FishEye stops
+ * while there is a backlog.
+ * </p>
+ * <p>
+ * {@link #append} returns once the commit is on disk. Records are written
+ * and fsync'ed by a single background thread, in batches of whatever
+ * accumulated during the previous write, so a burst of commits costs a few
+ * fsyncs rather than one per commit. A commit is {@link #markDone marked
+ * done} once it was processed, whatever the outcome. Commits that are still
+ * outstanding when the plugin starts are returned by {@link #getOutstanding}
+ * for replay. Whenever the journal holds far more records than outstanding
+ * commits, it is compacted to only the outstanding ones.
+ * </p>
+ * <p>
+ * A commit is identified by its repository and csid; while it is
+ * outstanding, appending it again has no effect, and only the first
+ * {@link #claim claim} for it succeeds, so a replayed commit that is also
+ * queued is processed only once. A commit that is to be retried later is
+ * {@link #release released} instead of marked done.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class CommitJournal implements DisposableBean {
+
+    private static final String JOURNAL_FILE = "commit-journal.txt";
+    private static final String COMPACT_FILE = "commit-journal.tmp";
+    private static final int COMPACT_THRESHOLD = 10000;
+    private static final long MAX_APPEND_WAIT_MILLIS = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(CommitJournal.class);
+
+    private final PluginDataDirectory dataDirectory;
+
+    /**
+     * Outstanding commits, mapped to whether they have been claimed.
+     */
+    private final ConcurrentMap<String, Boolean> outstanding = new ConcurrentHashMap<String, Boolean>();
+    private final List<CommitWork> recovered;
+
+    private final Object lock = new Object();
+    private List<String> pending = new ArrayList<String>();
+    private long pendingBatch = 1;
+    private long durableBatch = 0;
+    private boolean closed;
+
+    private FileOutputStream out;
+    private int records;
+    private final Thread writer;
+
+    public CommitJournal(PluginDataDirectory dataDirectory) {
+
+        this.dataDirectory = dataDirectory;
+        this.recovered = recover();
+
+        writer = new NamedThreadFactory("journal").newThread(new Runnable() {
+            public void run() {
+                writeBatches();
+            }
+        });
+        writer.start();
+    }
+
+    /**
+     * @return  the commits that were outstanding when the plugin was last
+     * stopped.
+     */
+    public List<CommitWork> getOutstanding() {
+        return recovered;
+    }
+
+    /**
+     * Records the commit as outstanding and waits until that is on disk.
+     * Gives up waiting after {@link #MAX_APPEND_WAIT_MILLIS} ms, so a slow
+     * disk never holds up the FishEye event thread for long.
+     */
+    public void append(CommitWork work) {
+
+        if (outstanding.putIfAbsent(key(work), Boolean.FALSE) != null) {
+            return;
+        }
+        final long batch = enqueue("A\t" + key(work));
+
+        final long deadline = System.currentTimeMillis() + MAX_APPEND_WAIT_MILLIS;
+        synchronized (lock) {
+            while (durableBatch < batch && !closed) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    logger.warn("Timed out writing changeset " + work + " to the commit journal.");
+                    return;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return  <code>false</code> if the commit is outstanding and was
+     * claimed before, in which case it must not be processed again.
+     */
+    public boolean claim(CommitWork work) {
+        final String key = key(work);
+        return outstanding.replace(key, Boolean.FALSE, Boolean.TRUE) || !outstanding.containsKey(key);
+    }
+
+    /**
+     * Gives up a claim on an outstanding commit that was not processed after
+     * all, so that it can be claimed again when it is retried.
+     */
+    public void release(String repositoryName, String changesetId) {
+        outstanding.replace(key(repositoryName, changesetId), Boolean.TRUE, Boolean.FALSE);
+    }
+
+    /**
+     * Records that the commit was processed. Does not wait for the record to
+     * reach the disk; losing it only means the commit is replayed.
+     */
+    public void markDone(String repositoryName, String changesetId) {
+        final String key = key(repositoryName, changesetId);
+        if (outstanding.remove(key) != null) {
+            enqueue("D\t" + key);
+        }
+    }
+
+    /**
+     * @return  <code>true</code> if the commit was appended and not yet
+     * marked done.
+     */
+    public boolean isOutstanding(String repositoryName, String changesetId) {
+        return outstanding.containsKey(key(repositoryName, changesetId));
+    }
+
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    public void destroy() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join(MAX_APPEND_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long enqueue(String record) {
+        synchronized (lock) {
+            pending.add(record);
+            lock.notifyAll();
+            return pendingBatch;
+        }
+    }
+
+    private void writeBatches() {
+        while (true) {
+            final List<String> batch;
+            final long batchNumber;
+            final boolean last;
+            synchronized (lock) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                batch = pending;
+                batchNumber = pendingBatch;
+                last = closed;
+                pending = new ArrayList<String>();
+                pendingBatch++;
+            }
+
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+            synchronized (lock) {
+                durableBatch = batchNumber;
+                lock.notifyAll();
+            }
+            if (last) {
+                closeQuietly(out);
+                return;
+            }
+        }
+    }
+
+    private void write(List<String> batch) {
+        try {
+            if (records > COMPACT_THRESHOLD && records > 4 * outstanding.size()) {
+                compact();
+            }
+            if (out == null) {
+                out = new FileOutputStream(dataDirectory.getFile(JOURNAL_FILE), true);
+            }
+            final StringBuilder buf = new StringBuilder();
+            for (String record : batch) {
+                buf.append(record).append('\n');
+            }
+            out.write(buf.toString().getBytes("UTF-8"));
+            out.getChannel().force(false);
+            records += batch.size();
+        } catch (IOException e) {
+            logger.error("Unable to write to the commit journal, commits may be lost on restart: " + e.getMessage(), e);
+            closeQuietly(out);
+            out = null;
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the outstanding commits. Only invoked
+     * by the writer thread.
+     */
+    private void compact() throws IOException {
+
+        final File compacted = dataDirectory.getFile(COMPACT_FILE);
+        final FileOutputStream compactOut = new FileOutputStream(compacted, false);
+        int count = 0;
+        try {
+            final StringBuilder buf = new StringBuilder();
+            for (String key : outstanding.keySet()) {
+                buf.append("A\t").append(key).append('\n');
+                count++;
+            }
+            compactOut.write(buf.toString().getBytes("UTF-8"));
+            compactOut.getChannel().force(false);
+        } finally {
+            compactOut.close();
+        }
+
+        closeQuietly(out);
+        out = null;
+        final File journal = dataDirectory.getFile(JOURNAL_FILE);
+        if (!compacted.renameTo(journal) && !(journal.delete() && compacted.renameTo(journal))) {
+            throw new IOException("Unable to replace " + journal + " with " + compacted);
+        }
+        logger.debug(String.format("Compacted the commit journal from %d to %d records.", records, count));
+        records = count;
+    }
+
+    /**
+     * Reads the journal left by the previous run. Incomplete trailing
+     * records, from a crash in the middle of a write, are ignored.
+     */
+    private List<CommitWork> recover() {
+
+        final File journal = dataDirectory.getFile(JOURNAL_FILE);
+        final List<CommitWork> result = new ArrayList<CommitWork>();
+        if (!journal.exists()) {
+            return result;
+        }
+
+        final Set<String> keys = new LinkedHashSet<String>();
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(journal), "UTF-8");
+            final StringBuilder contents = new StringBuilder();
+            final char[] buf = new char[8192];
+            for (int read = reader.read(buf); read >= 0; read = reader.read(buf)) {
+                contents.append(buf, 0, read);
+            }
+
+            int start = 0;
+            for (int end = contents.indexOf("\n"); end >= 0; end = contents.indexOf("\n", start)) {
+                final String[] fields = contents.substring(start, end).split("\t");
+                start = end + 1;
+                records++;
+                if (fields.length != 3) {
+                    continue;
+                }
+                final String key = key(fields[1], fields[2]);
+                if ("A".equals(fields[0])) {
+                    keys.add(key);
+                } else if ("D".equals(fields[0])) {
+                    keys.remove(key);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Unable to read the commit journal, commits may have been lost: " + e.getMessage(), e);
+        } finally {
+            closeQuietly(reader);
+        }
+
+        for (String key : keys) {
+            outstanding.put(key, Boolean.FALSE);
+            final int tab = key.indexOf('\t');
+            result.add(new CommitWork(key.substring(0, tab), key.substring(tab + 1)));
+        }
+        if (!result.isEmpty()) {
+            logger.info(String.format("Found %d commits in the journal that were not processed yet.", result.size()));
+        }
+        return result;
+    }
+
+    private static String key(CommitWork work) {
+        return key(work.getRepositoryName(), work.getChangesetId());
+    }
+
+    private static String key(String repositoryName, String changesetId) {
+        return repositoryName + "\t" + changesetId;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
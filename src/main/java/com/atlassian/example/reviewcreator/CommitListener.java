@@ -1,13 +1,15 @@
 package com.atlassian.example.reviewcreator;
 
+import com.atlassian.crucible.spi.PermId;
 import com.atlassian.crucible.spi.data.*;
 import com.atlassian.crucible.spi.services.*;
 import com.atlassian.event.Event;
 import com.atlassian.event.EventListener;
+import com.atlassian.example.reviewcreator.PipelineMetrics.Outcome;
+import com.atlassian.example.reviewcreator.PipelineMetrics.Stage;
 import com.atlassian.fisheye.event.CommitEvent;
 import com.atlassian.fisheye.spi.data.ChangesetDataFE;
 import com.atlassian.fisheye.spi.services.RevisionDataService;
-import com.atlassian.sal.api.user.UserManager;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -16,6 +18,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 
 /**
  * <p>
@@ -47,85 +53,419 @@ public class CommitListener implements EventListener {
 
     private final RevisionDataService revisionService;          // provided by FishEye
     private final ReviewService reviewService;                  // provided by Crucible
-    private final ProjectService projectService;                // provided by Crucible
     private final UserService userService;                      // provided by Crucible
-    private final UserManager userManager;                      // provided by SAL
     private final ImpersonationService impersonator;            // provided by Crucible
     private final ConfigurationManager config;                  // provided by our plugin
     private final SearchService searchService;                  // provided by our plugin
+    private final CommitterIndex committerIndex;                // provided by our plugin
+    private final CommitWorkQueue workQueue;                    // provided by our plugin
+    private final ChangesetCoalescer coalescer;                 // provided by our plugin
+    private final ReviewApprover approver;                      // provided by our plugin
+    private final ProjectIndex projectIndex;                    // provided by our plugin
+    private final GroupMembershipCache groupMembership;         // provided by our plugin
+    private final OpenReviewCache openReviews;                  // provided by our plugin
+    private final PipelineMetrics metrics;                      // provided by our plugin
+    private final ReviewBackfill backfill;                      // provided by our plugin
+    private final CommitJournal journal;                        // provided by our plugin
+    private final ProcessedChangesetIndex processedChangesets;  // provided by our plugin
+    private final HolidayCalendars holidayCalendars;            // provided by our plugin
+    private final ReviewDecorator decorator;                    // provided by our plugin
+    private final RemoteCallGuard guard;                        // provided by our plugin
+    private final DeferredCommits deferredCommits;              // provided by our plugin
 
     private static final ThreadLocal<Map<String, UserData>> committerToCrucibleUser = new ThreadLocal<Map<String,UserData>>();
 
+    /**
+     * Held while looking for a branch's review and creating it when there is
+     * none, so that concurrent commits on one branch cannot both create one.
+     */
+    private final LockStripes branchLocks = new LockStripes(64);
+
+    /**
+     * Memoized {@link #isUnderScrutiny} decisions, replaced as a whole when
+     * the configuration version or the group membership generation changes.
+     */
+    private final AtomicReference<ScrutinyDecisions> scrutinyDecisions =
+            new AtomicReference<ScrutinyDecisions>(new ScrutinyDecisions(-1, -1));
+
+    private volatile ReviewIdScanner reviewIdScanner = new ReviewIdScanner(Collections.<String>emptySet());
+    private volatile long reviewIdScannerVersion = -1;
+
+    private volatile BranchRules branchRules;
+    private volatile long branchRulesVersion = -1;
+
+    private static final Predicate<ReviewData> OPEN_REVIEW = new Predicate<ReviewData>() {
+        public boolean apply(ReviewData input) {
+            return input.getState() == ReviewData.State.Draft
+                    || input.getState() == ReviewData.State.Approval
+                    || input.getState() == ReviewData.State.Review;
+        }
+    };
+
     public CommitListener(ConfigurationManager config,
             ReviewService reviewService,
-            ProjectService projectService,
             RevisionDataService revisionService,
             UserService userService,
-            UserManager userManager,
             ImpersonationService impersonator,
-            SearchService searchService) {
+            SearchService searchService,
+            CommitterIndex committerIndex,
+            CommitWorkQueue workQueue,
+            ChangesetCoalescer coalescer,
+            ReviewApprover approver,
+            ProjectIndex projectIndex,
+            GroupMembershipCache groupMembership,
+            OpenReviewCache openReviews,
+            PipelineMetrics metrics,
+            ReviewBackfill backfill,
+            CommitJournal journal,
+            ProcessedChangesetIndex processedChangesets,
+            HolidayCalendars holidayCalendars,
+            ReviewDecorator decorator,
+            RemoteCallGuard guard,
+            DeferredCommits deferredCommits) {
 
         this.reviewService = reviewService;
         this.revisionService = revisionService;
-        this.projectService = projectService;
         this.userService = userService;
-        this.userManager = userManager;
         this.impersonator = impersonator;
         this.config = config;
         this.searchService = searchService;
+        this.committerIndex = committerIndex;
+        this.workQueue = workQueue;
+        this.coalescer = coalescer;
+        this.approver = approver;
+        this.projectIndex = projectIndex;
+        this.groupMembership = groupMembership;
+        this.openReviews = openReviews;
+        this.metrics = metrics;
+        this.backfill = backfill;
+        this.journal = journal;
+        this.processedChangesets = processedChangesets;
+        this.holidayCalendars = holidayCalendars;
+        this.decorator = decorator;
+        this.guard = guard;
+        this.deferredCommits = deferredCommits;
+
+        workQueue.setProcessor(new CommitWorkQueue.Processor() {
+            public void process(CommitWork work) {
+                processCommit(work);
+            }
+        });
+        backfill.setProcessor(new CommitWorkQueue.Processor() {
+            public void process(CommitWork work) {
+                processCommit(work);
+            }
+        });
+        coalescer.setFlusher(new ChangesetCoalescer.Flusher() {
+            public void flush(String repoKey, ProjectData project, List<ChangesetDataFE> changesets) {
+                processChangesets(repoKey, project, changesets);
+            }
+        });
+
+        replayJournal();
+    }
+
+    /**
+     * Queues the commits that were received, but not processed before the
+     * last shutdown. Does so on a thread of its own, as submitting them may
+     * wait for room in the queue, which must not hold up the plugin's start.
+     */
+    private void replayJournal() {
+
+        final List<CommitWork> outstanding = journal.getOutstanding();
+        if (outstanding.isEmpty()) {
+            return;
+        }
+        new NamedThreadFactory("journal-replay").newThread(new Runnable() {
+            public void run() {
+                for (CommitWork work : outstanding) {
+                    workQueue.submit(work);
+                }
+                logger.info(String.format("Queued %d commits from the journal.", outstanding.size()));
+            }
+        }).start();
     }
 
     public Class[] getHandledEventClasses() {
         return new Class[] {CommitEvent.class};
     }
 
+    /**
+     * Only journals and queues the commit, so that the FishEye event thread
+     * is never held up by review creation. The work is done by
+     * {@link #processCommit}. Commits to repositories that no enabled project
+     * is bound to, and commits that were processed before, are discarded
+     * right away.
+     */
     public void handleEvent(Event event) {
 
         final CommitEvent commit = (CommitEvent) event;
 
-        if (!isPluginEnabled()) {
+        if (!isPluginEnabled() || !projectIndex.isRepositoryEnabled(commit.getRepositoryName())) {
+            return;
+        }
+        if (processedChangesets.isProcessed(commit.getRepositoryName(), commit.getChangeSetId())) {
+            logger.debug(String.format("Ignoring changeset %s:%s, it was processed before.",
+                    commit.getRepositoryName(), commit.getChangeSetId()));
             return;
         }
 
-        Operation<Void, ServerException> operation = new Operation<Void, ServerException>() {
-            public Void perform() throws ServerException {
-                final ChangesetDataFE cs = revisionService.getChangeset(commit.getRepositoryName(), commit.getChangeSetId());
-                final ProjectData project = getEnabledProjectForRepository(commit.getRepositoryName());
+        final CommitWork work = new CommitWork(commit.getRepositoryName(), commit.getChangeSetId());
+        journal.append(work);
+        workQueue.submit(work);
+    }
 
+    /**
+     * Runs a queued commit through review creation. Invoked on one of the
+     * {@link CommitWorkQueue}'s worker threads, or by a
+     * {@link ReviewBackfill}.
+     */
+    void processCommit(final CommitWork commit) {
+
+        if (processedChangesets.isProcessed(commit.getRepositoryName(), commit.getChangesetId())) {
+            journal.markDone(commit.getRepositoryName(), commit.getChangesetId());
+            return;
+        }
+        if (!journal.claim(commit)) {
+            // already being processed, e.g. replayed from the journal and queued again:
+            return;
+        }
+        if (!isPluginEnabled()) {
+            journal.markDone(commit.getRepositoryName(), commit.getChangesetId());
+            return;
+        }
+
+        Operation<Boolean, ServerException> operation = new Operation<Boolean, ServerException>() {
+            public Boolean perform() throws ServerException {
+                final ProjectData project = projectIndex.getEnabledProject(commit.getRepositoryName());
                 if (project == null) {
                     logger.error(String.format("Unable to auto-create review for changeset %s. No projects found that bind to repository %s.",
-                            commit.getChangeSetId(), commit.getRepositoryName()));
-                    return null;
+                            commit.getChangesetId(), commit.getRepositoryName()));
+                    metrics.count(null, Outcome.SKIPPED, "no-project", 1);
+                    return false;
                 }
 
-                committerToCrucibleUser.set(loadCommitterMappings(project.getDefaultRepositoryName()));
-                if (project.getDefaultModerator() == null) {
-                    logger.error(String.format("Unable to auto-create review for changeset %s. No default moderator configured for project %s.",
-                            commit.getChangeSetId(), project.getKey()));
-                    return null;
+                try {
+                    return coalesceCommit(commit, project);
+                } catch (ServerException e) {
+                    metrics.count(project.getKey(), Outcome.FAILED, e.getClass().getSimpleName(), 1);
+                    throw e;
+                } catch (ServiceUnavailableException e) {
+                    if (e.isDeferrable()) {
+                        metrics.count(project.getKey(), Outcome.DEFERRED, e.getService().getDisplayName(), 1);
+                    } else {
+                        metrics.count(project.getKey(), Outcome.FAILED, e.getClass().getSimpleName(), 1);
+                    }
+                    throw e;
+                } catch (RuntimeException e) {
+                    metrics.count(project.getKey(), Outcome.FAILED, e.getClass().getSimpleName(), 1);
+                    throw e;
                 }
+            }
+        };
 
-                if (!isUnderScrutiny(cs.getAuthor())) {
-                    logger.info(String.format("Not creating a review for changeset %s because author is not under review",
-                            commit.getChangeSetId()));
-                    return null;
-                }
+        boolean coalesced = false;
+        boolean deferred = false;
+        try {
+            // switch to admin user so we can access all projects and API services:
+            coalesced = impersonator.doAsUser(null, config.loadRunAsUser(), operation);
+        } catch (Exception e) {
+            deferred = defer(Collections.singletonList(commit), e);
+            if (!deferred) {
+                logger.error(String.format("Unable to auto-create review for changeset %s: %s.",
+                        commit.getChangesetId(), e.getMessage()), e);
+            }
+        } finally {
+            if (!coalesced && !deferred) {
+                // otherwise it is done once its batch is processed, or retried later:
+                journal.markDone(commit.getRepositoryName(), commit.getChangesetId());
+            }
+        }
+    }
+
+    /**
+     * Hands the commits to the {@link DeferredCommits} if they failed because
+     * a remote service is unavailable, so that they are processed again once
+     * it recovers. They stay outstanding in the journal in the meantime.
+     * Commits whose failed call may still have taken effect, such as a review
+     * creation that timed out, are not deferred, as processing them again
+     * could create a second review for their branch.
+     *
+     * @return  {@code true} if the commits were deferred.
+     */
+    private boolean defer(List<CommitWork> commits, Exception e) {
 
-                if (!config.loadIterative() || !appendToReview(commit.getRepositoryName(), cs, project)) {
+        final ServiceUnavailableException unavailable = ServiceUnavailableException.find(e);
+        if (unavailable == null || !unavailable.isDeferrable()) {
+            return false;
+        }
+        logger.warn(String.format("Deferring %d changesets until %s recovers: %s",
+                commits.size(), unavailable.getService().getDisplayName(), unavailable.getMessage()));
+        for (CommitWork commit : commits) {
+            journal.release(commit.getRepositoryName(), commit.getChangesetId());
+            deferredCommits.defer(commit, unavailable.getService());
+        }
+        return true;
+    }
+
+    /**
+     * Fetches the changeset and hands it to the {@link ChangesetCoalescer}
+     * if its author is under scrutiny. Must be invoked with admin
+     * permissions.
+     *
+     * @return  {@code true} if the changeset was handed to the coalescer.
+     */
+    private boolean coalesceCommit(final CommitWork commit, ProjectData project) throws ServerException {
+
+        // before fetching the changeset, as commits are deferred until the index is built:
+        loadCommitterMappings(project);
+
+        final ChangesetDataFE cs;
+        long start = metrics.start();
+        boolean success = false;
+        try {
+            cs = guard.call(RemoteCallGuard.Service.REVISIONS, config.loadRunAsUser(), true,
+                    new Operation<ChangesetDataFE, ServerException>() {
+                        public ChangesetDataFE perform() throws ServerException {
+                            return revisionService.getChangeset(commit.getRepositoryName(), commit.getChangesetId());
+                        }
+                    });
+            success = true;
+        } finally {
+            metrics.record(Stage.GET_CHANGESET, start, success);
+        }
+
+        if (!getBranchRules().accepts(project.getKey(), cs.getBranches())) {
+            logger.info(String.format("Not creating a review for changeset %s because its branches %s are excluded.",
+                    commit.getChangesetId(), cs.getBranches()));
+            metrics.count(project.getKey(), Outcome.SKIPPED, "not-feature-branch", 1);
+            return false;
+        }
+
+        if (project.getDefaultModerator() == null) {
+            logger.error(String.format("Unable to auto-create review for changeset %s. No default moderator configured for project %s.",
+                    commit.getChangesetId(), project.getKey()));
+            metrics.count(project.getKey(), Outcome.SKIPPED, "no-moderator", 1);
+            return false;
+        }
+
+        start = metrics.start();
+        final boolean underScrutiny = isUnderScrutiny(cs.getAuthor());
+        metrics.record(Stage.SCRUTINY, start, true);
+        if (!underScrutiny) {
+            logger.info(String.format("Not creating a review for changeset %s because author is not under review",
+                    commit.getChangesetId()));
+            metrics.count(project.getKey(), Outcome.SKIPPED, "not-under-scrutiny", 1);
+            return false;
+        }
+
+        // wait for more commits on the same branch:
+        coalescer.add(commit.getRepositoryName(), project, cs);
+        return true;
+    }
+
+    /**
+     * Makes the committer mappings of the project's repository available to
+     * the current thread. Until the index is built, this starts the shared
+     * build in the background and defers the commits on the user directory,
+     * rather than building it on the commit's lane, which could hold up the
+     * repository's commits for as long as walking the directory takes.
+     */
+    private void loadCommitterMappings(final ProjectData project) throws ServerException {
+        final long start = metrics.start();
+        boolean success = false;
+        try {
+            if (committerIndex.getBuiltAt() == null) {
+                committerIndex.buildAsync();
+                throw new ServiceUnavailableException(RemoteCallGuard.Service.USER_DIRECTORY,
+                        "has not been indexed yet, waiting for the committer mappings to be built.");
+            }
+            committerToCrucibleUser.set(committerIndex.getCommitterMappings(project.getDefaultRepositoryName()));
+            success = true;
+        } finally {
+            metrics.record(Stage.COMMITTER_MAPPINGS, start, success);
+        }
+    }
+
+    /**
+     * Creates or appends to a single review for a batch of changesets that
+     * were committed to the same branch. Invoked by the
+     * {@link ChangesetCoalescer} once the branch's coalescing window closes.
+     * Only changesets that made it into a review are recorded as processed;
+     * skipped and failed ones are evaluated again when FishEye emits them
+     * again or a backfill covers them.
+     */
+    void processChangesets(final String repoKey, final ProjectData project, final List<ChangesetDataFE> changesets) {
+
+        Operation<Boolean, ServerException> operation = new Operation<Boolean, ServerException>() {
+            public Boolean perform() throws ServerException {
+                loadCommitterMappings(project);
+                final Lock branchLock = lockBranch(changesets.get(0));
+                try {
+                    if (config.loadIterative() && appendToReview(repoKey, changesets, project)) {
+                        return true;
+                    }
                     // create a new review:
-                    createReview(commit.getRepositoryName(), cs, project);
+                    return createReview(repoKey, changesets, project);
+                } finally {
+                    if (branchLock != null) {
+                        branchLock.unlock();
+                    }
                 }
-                return null;
             }
         };
 
+        boolean deferred = false;
         try {
             // switch to admin user so we can access all projects and API services:
-            impersonator.doAsUser(null, config.loadRunAsUser(), operation);
+            if (impersonator.doAsUser(null, config.loadRunAsUser(), operation)) {
+                for (ChangesetDataFE cs : changesets) {
+                    processedChangesets.markProcessed(repoKey, cs.getCsid());
+                }
+            }
         } catch (Exception e) {
-            logger.error(String.format("Unable to auto-create review for changeset %s: %s.",
-                    commit.getChangeSetId(), e.getMessage()), e);
+            final List<CommitWork> commits = new ArrayList<CommitWork>(changesets.size());
+            for (ChangesetDataFE cs : changesets) {
+                commits.add(new CommitWork(repoKey, cs.getCsid()));
+            }
+            deferred = defer(commits, e);
+            if (deferred) {
+                metrics.count(project.getKey(), Outcome.DEFERRED,
+                        ServiceUnavailableException.find(e).getService().getDisplayName(), changesets.size());
+            } else {
+                logger.error(String.format("Unable to auto-create review for changesets %s: %s.",
+                        getCsids(changesets), e.getMessage()), e);
+                metrics.count(project.getKey(), Outcome.FAILED, e.getClass().getSimpleName(), changesets.size());
+            }
+        } finally {
+            if (!deferred) {
+                for (ChangesetDataFE cs : changesets) {
+                    journal.markDone(repoKey, cs.getCsid());
+                }
+            }
+        }
+    }
+
+    /**
+     * Acquires the lock of the changeset's branch, keyed on the JIRA key that
+     * is derived from it. Waiting for it is timed as
+     * {@link Stage#BRANCH_LOCK}.
+     *
+     * @return  the acquired lock, or <code>null</code> when the changeset is
+     * not on any branch.
+     */
+    private Lock lockBranch(ChangesetDataFE cs) {
+
+        if (cs.getBranches().isEmpty()) {
+            return null;
         }
+        final Lock lock = branchLocks.get(createJiraKey(cs));
+        if (!lock.tryLock()) {
+            final long start = metrics.start();
+            lock.lock();
+            metrics.record(Stage.BRANCH_LOCK, start, true);
+        }
+        return lock;
     }
 
     /**
@@ -144,137 +484,347 @@ public class CommitListener implements EventListener {
             return true;
         }
 
-        final boolean userInList = crucibleUser != null && config.loadCrucibleUserNames().contains(crucibleUser.getUserName());
-        final boolean userInGroups = crucibleUser != null && Iterables.any(config.loadCrucibleGroups(), new Predicate<String>() {
-                    public boolean apply(String group) {
-                        return userManager.isUserInGroup(crucibleUser.getUserName(), group);
-                    }
-                });
+        final ConfigurationSnapshot settings = config.loadSnapshot();
+        final long groupGeneration = groupMembership.getGeneration();
+        ScrutinyDecisions memo = scrutinyDecisions.get();
+        if (!memo.isFor(settings.getVersion(), groupGeneration)) {
+            // decisions are only ever added to the memo of the settings they were made with:
+            final ScrutinyDecisions current = new ScrutinyDecisions(settings.getVersion(), groupGeneration);
+            if (current.isNewerThan(memo)) {
+                scrutinyDecisions.compareAndSet(memo, current);
+            }
+            memo = current;
+        }
 
-        switch (config.loadCreateMode()) {
+        final String username = crucibleUser.getUserName();
+        final Boolean memoized = memo.decisions.get(username);
+        if (memoized != null) {
+            return memoized;
+        }
+
+        final boolean userInList = settings.getCrucibleUserNames().contains(username);
+        final boolean userInGroups = !userInList && groupMembership.isInAnyGroup(username);
+
+        final boolean underScrutiny;
+        switch (settings.getCreateMode()) {
             case ALWAYS:
-                return !(userInList || userInGroups);
+                underScrutiny = !(userInList || userInGroups);
+                break;
             case NEVER:
-                return userInList || userInGroups;
+                underScrutiny = userInList || userInGroups;
+                break;
             default:
                 throw new AssertionError("Unsupported create mode");
         }
+        memo.decisions.put(username, underScrutiny);
+        return underScrutiny;
     }
 
     /**
-     * Attempts to add the change set to an existing open review by scanning
-     * the commit message for review IDs in the current project. When multiple
-     * IDs are found, the first non-closed review is used.
+     * {@link #isUnderScrutiny} decisions by Crucible username, made with one
+     * configuration version and group membership generation.
+     */
+    private static class ScrutinyDecisions {
+
+        private final long configVersion;
+        private final long groupGeneration;
+        private final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<String, Boolean>();
+
+        ScrutinyDecisions(long configVersion, long groupGeneration) {
+            this.configVersion = configVersion;
+            this.groupGeneration = groupGeneration;
+        }
+
+        boolean isFor(long configVersion, long groupGeneration) {
+            return this.configVersion == configVersion && this.groupGeneration == groupGeneration;
+        }
+
+        boolean isNewerThan(ScrutinyDecisions other) {
+            return configVersion >= other.configVersion && groupGeneration >= other.groupGeneration;
+        }
+    }
+
+    /**
+     * Attempts to add the change sets to an existing open review. Reviews
+     * whose ids are mentioned in the commit messages take precedence;
+     * otherwise reviews linked to the JIRA key derived from the branch name
+     * are searched. When multiple reviews are found, the first non-closed
+     * review is used.
      *
-     * @return  {@code true} if the change set was successfully added to an
+     * @param changesets    one or more change sets on the same branch, in
+     *  commit order.
+     * @return  {@code true} if the change sets were successfully added to an
      * existing review, {@code false} otherwise.
      */
-    private boolean appendToReview(final String repoKey, final ChangesetDataFE cs, final ProjectData project) {
+    private boolean appendToReview(final String repoKey, final List<ChangesetDataFE> changesets, final ProjectData project) {
 
-        Set<String> branches = cs.getBranches();
-        if (branches.isEmpty() || branches.contains("master")  || branches.contains("master_raptor2")) {
-            logger.info("Not appending to review because commit branches are empty or `master` is found");
-            return false;
+        final ChangesetDataFE cs = changesets.get(0);
+
+        final PermId<ReviewData> mentioned = findMentionedReview(changesets);
+        if (mentioned != null && addToReview(repoKey, changesets, project, mentioned)) {
+            countReviewed(project, Outcome.APPENDED, "mentioned-review", changesets);
+            return true;
+        }
+
+        final String jiraKey = createJiraKey(cs);
+        final OpenReviewCache.Entry cached = openReviews.get(project.getKey(), jiraKey);
+        if (cached != null) {
+            if (cached.getPermaId() == null) {
+                return false;
+            } else if (addToReview(repoKey, changesets, project, cached.getPermaId())) {
+                countReviewed(project, Outcome.APPENDED, "branch-review", changesets);
+                return true;
+            }
+            // the review may have been closed since we cached it:
+            openReviews.invalidate(project.getKey(), jiraKey);
         }
 
-        String jiraKey = createJiraKey(cs);
         List<ReviewData> reviewDatas;
+        final long start = metrics.start();
         try {
-            reviewDatas = searchService.searchForReviewsByJiraKey(jiraKey);
+            reviewDatas = guard.call(RemoteCallGuard.Service.SEARCH, config.loadRunAsUser(), true,
+                    new Operation<List<ReviewData>, ServerException>() {
+                        public List<ReviewData> perform() throws ServerException {
+                            return searchService.searchForReviewsByJiraKey(jiraKey);
+                        }
+                    });
+            metrics.record(Stage.SEARCH_REVIEWS, start, true);
+        } catch (ServiceUnavailableException e) {
+            // rather than creating a second review for the branch:
+            metrics.record(Stage.SEARCH_REVIEWS, start, false);
+            throw e;
         } catch (Exception e) {
+            metrics.record(Stage.SEARCH_REVIEWS, start, false);
             logger.warn("Couldn't perform search for existing reviews by JIRA Key: " + jiraKey, e);
             return false;
         }
 
-        Predicate<ReviewData> predicate = new Predicate<ReviewData>() {
-            public boolean apply(ReviewData input) {
-                return input.getState() == ReviewData.State.Draft
-                        || input.getState() == ReviewData.State.Approval
-                        || input.getState() == ReviewData.State.Review;
-            }
-        };
-
         final ReviewData review;
         try {
-            review = Iterables.find(reviewDatas, predicate);
+            review = Iterables.find(reviewDatas, OPEN_REVIEW);
         }
         catch (NoSuchElementException e){
+            openReviews.putNone(project.getKey(), jiraKey);
             return false;
         }
 
+        if (addToReview(repoKey, changesets, project, review.getPermaId())) {
+            openReviews.putOpen(project.getKey(), jiraKey, review.getPermaId());
+            countReviewed(project, Outcome.APPENDED, "branch-review", changesets);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Counts changesets that were added to a review, and records how long
+     * after being committed they got there.
+     */
+    private void countReviewed(ProjectData project, Outcome outcome, String reason, List<ChangesetDataFE> changesets) {
+        metrics.count(project.getKey(), outcome, reason, changesets.size());
+        for (ChangesetDataFE cs : changesets) {
+            metrics.recordReviewLag(project.getKey(), cs.getDate());
+        }
+    }
+
+    /**
+     * Scans the commit messages for ids of reviews in any of the enabled
+     * projects.
+     *
+     * @return  the first mentioned review that is still open, or
+     * <code>null</code>.
+     */
+    private PermId<ReviewData> findMentionedReview(List<ChangesetDataFE> changesets) {
+
+        final ReviewIdScanner scanner = getReviewIdScanner();
+        for (ChangesetDataFE cs : changesets) {
+            for (final String id : scanner.scan(cs.getComment())) {
+                final long start = metrics.start();
+                try {
+                    final ReviewData review = guard.call(RemoteCallGuard.Service.REVIEWS, config.loadRunAsUser(), true,
+                            new Operation<ReviewData, ServerException>() {
+                                public ReviewData perform() throws ServerException {
+                                    return reviewService.getReview(new PermId<ReviewData>(id), false);
+                                }
+                            });
+                    metrics.record(Stage.GET_REVIEW, start, true);
+                    if (review != null && OPEN_REVIEW.apply(review)) {
+                        return review.getPermaId();
+                    }
+                } catch (ServiceUnavailableException e) {
+                    metrics.record(Stage.GET_REVIEW, start, false);
+                    throw e;
+                } catch (Exception e) {
+                    metrics.record(Stage.GET_REVIEW, start, false);
+                    logger.info(String.format("Ignoring review %s mentioned in changeset %s: %s",
+                            id, cs.getCsid(), e.getMessage()));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return  a scanner for the review ids of all enabled projects, rebuilt
+     * only when the set of enabled projects changes.
+     */
+    private ReviewIdScanner getReviewIdScanner() {
+
+        final ConfigurationSnapshot settings = config.loadSnapshot();
+        ReviewIdScanner scanner = reviewIdScanner;
+        if (settings.getVersion() != reviewIdScannerVersion) {
+            if (!scanner.getProjectKeys().equals(settings.getEnabledProjects())) {
+                scanner = new ReviewIdScanner(settings.getEnabledProjects());
+                reviewIdScanner = scanner;
+            }
+            reviewIdScannerVersion = settings.getVersion();
+        }
+        return scanner;
+    }
+
+    /**
+     * @return  the configured branch rules, compiled again only when the
+     * configuration changes.
+     */
+    private BranchRules getBranchRules() {
+
+        final ConfigurationSnapshot settings = config.loadSnapshot();
+        BranchRules rules = branchRules;
+        if (settings.getVersion() != branchRulesVersion) {
+            rules = new BranchRules(settings.getBranchRules());
+            branchRules = rules;
+            branchRulesVersion = settings.getVersion();
+        }
+        return rules;
+    }
+
+    /**
+     * Adds the change sets to the specified review, as the committer of the
+     * first change set.
+     *
+     * @return  {@code true} if the change sets were successfully added.
+     */
+    private boolean addToReview(final String repoKey, final List<ChangesetDataFE> changesets,
+                                final ProjectData project, final PermId<ReviewData> permaId) {
+
+        final String username = getCommitterUser(changesets.get(0), project.getDefaultModerator()).getUserName();
+        final Operation<Void, ServerException> append = new Operation<Void, ServerException>() {
+            public Void perform() throws ServerException {
+                reviewService.addChangesetsToReview(permaId, repoKey, toChangesetData(changesets));
+                return null;
+            }
+        };
         Operation<Boolean, RuntimeException> operation = new Operation<Boolean, RuntimeException>() {
             public Boolean perform() throws RuntimeException {
+                final long start = metrics.start();
                 try {
-                    reviewService.addChangesetsToReview(review.getPermaId(), repoKey,
-                            Collections.singletonList(new ChangesetData(cs.getCsid())));
-                    addComment(review, cs.getComment());
+                    guard.call(RemoteCallGuard.Service.REVIEWS, username, false, append);
+                    metrics.record(Stage.APPEND_TO_REVIEW, start, true);
+                    addComment(permaId, combineComments(changesets), username);
                     return true;
+                } catch (ServiceUnavailableException e) {
+                    metrics.record(Stage.APPEND_TO_REVIEW, start, false);
+                    throw e;
                 } catch (Exception e) {
-                    logger.warn(String.format("Error appending changeset %s to review %s: %s",
-                            cs.getCsid(), review.getPermaId().getId(), e.getMessage()), e);
+                    metrics.record(Stage.APPEND_TO_REVIEW, start, false);
+                    logger.warn(String.format("Error appending changesets %s to review %s: %s",
+                            getCsids(changesets), permaId.getId(), e.getMessage()), e);
                     return false;
                 }
             }
         };
-        String username = getCommitterUser(cs, project.getDefaultModerator()).getUserName();
         try {
             return impersonator.doAsUser(null, username, operation);
         } catch (Exception e){
-            logger.warn(String.format("Couldn't append changeset %s to existing review %s",
-                    cs.getCsid(), review.getPermaId().getId()), e);
+            final ServiceUnavailableException unavailable = ServiceUnavailableException.find(e);
+            if (unavailable != null) {
+                throw unavailable;
+            }
+            logger.warn(String.format("Couldn't append changesets %s to existing review %s",
+                    getCsids(changesets), permaId.getId()), e);
             return false;
         }
     }
 
-    private void createReview(final String repoKey, final ChangesetDataFE cs, final ProjectData project) {
+    /**
+     * @param changesets    one or more change sets on the same branch, in
+     *  commit order. The first one determines the review's name, JIRA key
+     *  and author.
+     * @return  {@code true} if the review was created.
+     */
+    private boolean createReview(final String repoKey, final List<ChangesetDataFE> changesets, final ProjectData project) {
 
-        final ReviewData template = buildReviewTemplate(cs, project);
-        if (template == null) return;
+        final ChangesetDataFE cs = changesets.get(0);
 
-        if (cs.getBranches().isEmpty() || cs.getBranches().contains("master") || cs.getBranches().contains("master_raptor2")){
-            logger.info("Skipping review creation since it's not a feature branch.");
-            return;
+        final ReviewData template = buildReviewTemplate(cs, project);
+        if (template == null) {
+            metrics.count(project.getKey(), Outcome.FAILED, "no-template", changesets.size());
+            return false;
         }
 
+        // switch to user moderator:
+        final String userName = getCommitterUser(cs, project.getDefaultModerator()).getUserName();
         Operation<Void, ServerException> operation = new Operation<Void, ServerException>() {
             public Void perform() throws ServerException {
 
                 // create a new review:
-                final ReviewData review = reviewService.createReviewFromChangeSets(
-                        template,
-                        repoKey,
-                        Collections.singletonList(new ChangesetData(cs.getCsid())));
-
-                // add the project's default reviewers:
-                addReviewers(review, project);
-                addComment(review, cs.getComment());
-
-                // start the review, so everyone is notified:
+                final ReviewData review;
+                final long start = metrics.start();
+                boolean success = false;
                 try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    logger.warn(e.getLocalizedMessage(), e);
+                    review = guard.call(RemoteCallGuard.Service.REVIEWS, userName, false,
+                            new Operation<ReviewData, ServerException>() {
+                                public ReviewData perform() throws ServerException {
+                                    return reviewService.createReviewFromChangeSets(
+                                            template,
+                                            repoKey,
+                                            toChangesetData(changesets));
+                                }
+                            });
+                    success = true;
+                } finally {
+                    metrics.record(Stage.CREATE_REVIEW, start, success);
                 }
-                reviewService.changeState(review.getPermaId(), ReviewService.Action.Approve);
+
+                // add the project's default reviewers and the commit messages, concurrently:
+                final long decorateStart = metrics.start();
+                decorator.decorate(userName, new Runnable() {
+                    public void run() {
+                        addReviewers(review, project, userName);
+                    }
+                }, new Runnable() {
+                    public void run() {
+                        addComment(review.getPermaId(), combineComments(changesets), userName);
+                    }
+                });
+                metrics.record(Stage.DECORATE_REVIEW, decorateStart, true);
+
+                // remember the branch's new review for iterative mode:
+                openReviews.putOpen(project.getKey(), createJiraKey(cs), review.getPermaId());
+
+                // start the review in the background, so everyone is notified:
+                approver.approve(review.getPermaId(), userName);
+                countReviewed(project, Outcome.CREATED, "new-review", changesets);
 
                 logger.info(String.format("Auto-created review %s for " +
                                 "commit %s:%s with moderator %s.",
                         review.getPermaId(), repoKey,
-                        cs.getCsid(), review.getModerator().getUserName()));
+                        getCsids(changesets), review.getModerator().getUserName()));
                 return null;
             }
         };
-        // switch to user moderator:
-        String userName = getCommitterUser(cs, project.getDefaultModerator()).getUserName();
         try {
             impersonator.doAsUser(null, userName, operation);
+            return true;
         } catch (ServerException e) {
             logger.error("Couldn't create review: " + e.getLocalizedMessage(), e);
+            metrics.count(project.getKey(), Outcome.FAILED, e.getClass().getSimpleName(), changesets.size());
+            return false;
         }
     }
 
 
-    private UserData getCommitterUser(ChangesetDataFE cs, String moderatorUsername) {
+    private UserData getCommitterUser(ChangesetDataFE cs, final String moderatorUsername) {
         String author = cs.getAuthor();
         UserData userData = committerToCrucibleUser.get().get(author);
         if (userData != null){
@@ -283,7 +833,12 @@ public class CommitListener implements EventListener {
         else {
             try {
                 logger.warn("Couldn't find user info for: " + author + " in " + committerToCrucibleUser.get());
-                return userService.getUser(moderatorUsername);
+                return guard.call(RemoteCallGuard.Service.USERS, config.loadRunAsUser(), true,
+                        new Operation<UserData, ServerException>() {
+                            public UserData perform() throws ServerException {
+                                return userService.getUser(moderatorUsername);
+                            }
+                        });
             } catch (ServerException e) {
                 logger.error("Couldn't retrieve moderator from UserService: " + moderatorUsername);
                 return null;
@@ -291,6 +846,40 @@ public class CommitListener implements EventListener {
         }
     }
 
+    private List<ChangesetData> toChangesetData(List<ChangesetDataFE> changesets) {
+        final List<ChangesetData> result = new ArrayList<ChangesetData>(changesets.size());
+        for (ChangesetDataFE cs : changesets) {
+            result.add(new ChangesetData(cs.getCsid()));
+        }
+        return result;
+    }
+
+    private String getCsids(List<ChangesetDataFE> changesets) {
+        final List<String> csids = new ArrayList<String>(changesets.size());
+        for (ChangesetDataFE cs : changesets) {
+            csids.add(cs.getCsid());
+        }
+        return StringUtils.join(csids, ",");
+    }
+
+    /**
+     * @return  the commit message of a single change set, or the messages of
+     * all change sets, each preceded by its csid, when there are several.
+     */
+    private String combineComments(List<ChangesetDataFE> changesets) {
+        if (changesets.size() == 1) {
+            return changesets.get(0).getComment();
+        }
+        final StringBuilder comment = new StringBuilder();
+        for (ChangesetDataFE cs : changesets) {
+            if (comment.length() > 0) {
+                comment.append("\n\n");
+            }
+            comment.append(cs.getCsid()).append(":\n").append(cs.getComment());
+        }
+        return comment.toString();
+    }
+
     private String createJiraKey(ChangesetDataFE cs) {
         String jiraKey = cs.getBranches().iterator().next();
         jiraKey = jiraKey.replaceAll("\\W", "");
@@ -301,10 +890,11 @@ public class CommitListener implements EventListener {
     /**
      * Must be called within the context of a user.
      *
-     * @param review
+     * @param permaId
      * @param message
+     * @param username  the user the comment is added as.
      */
-    private void addComment(final ReviewData review, final String message) {
+    private void addComment(final PermId<ReviewData> permaId, final String message, String username) {
 
         final GeneralCommentData comment = new GeneralCommentData();
         comment.setCreateDate(new Date());
@@ -312,15 +902,23 @@ public class CommitListener implements EventListener {
         comment.setDeleted(false);
         comment.setMessage(message);
 
+        final long start = metrics.start();
         try {
-            reviewService.addGeneralComment(review.getPermaId(), comment);
+            guard.call(RemoteCallGuard.Service.REVIEWS, username, false, new Operation<Void, ServerException>() {
+                public Void perform() throws ServerException {
+                    reviewService.addGeneralComment(permaId, comment);
+                    return null;
+                }
+            });
+            metrics.record(Stage.ADD_COMMENT, start, true);
         } catch (Exception e) {
+            metrics.record(Stage.ADD_COMMENT, start, false);
             logger.error(String.format("Unable to add a general comment to review %s: %s",
-                    review.getPermaId().getId(), e.getMessage()), e);
+                    permaId.getId(), e.getMessage()), e);
         }
     }
 
-    private void addReviewers(ReviewData review, ProjectData project) {
+    private void addReviewers(final ReviewData review, ProjectData project, String username) {
         final List<String> reviewers = Lists.newArrayList(project.getDefaultReviewerUsers());
 
         if (reviewers != null && !reviewers.isEmpty()) {
@@ -329,11 +927,19 @@ public class CommitListener implements EventListener {
             if (review.getModerator() != null && reviewers.contains(review.getModerator().getUserName()))
                 reviewers.remove(review.getModerator().getUserName());
 
-            String[] reviewersArray = reviewers.toArray(new String[reviewers.size()]);
+            final String[] reviewersArray = reviewers.toArray(new String[reviewers.size()]);
+            final long start = metrics.start();
             try {
-                reviewService.addReviewers(review.getPermaId(), reviewersArray);
+                guard.call(RemoteCallGuard.Service.REVIEWS, username, false, new Operation<Void, ServerException>() {
+                    public Void perform() throws ServerException {
+                        reviewService.addReviewers(review.getPermaId(), reviewersArray);
+                        return null;
+                    }
+                });
+                metrics.record(Stage.ADD_REVIEWERS, start, true);
             }
             catch (Exception e) {
+                metrics.record(Stage.ADD_REVIEWERS, start, false);
                 logger.warn("Couldn't add default reviewers: " + e.getLocalizedMessage(), e);
             }
         }
@@ -348,7 +954,7 @@ public class CommitListener implements EventListener {
 
         final UserData creator = getCommitterUser(cs, project.getDefaultModerator());
         final Date dueDate = project.getDefaultDuration() == null ? null :
-                DateHelper.addWorkingDays(new Date(), project.getDefaultDuration());
+                holidayCalendars.getCalendar(project.getKey()).addWorkingDays(new Date(), project.getDefaultDuration());
 
         ReviewData.Builder builder = new ReviewData.Builder();
         builder.setProjectKey(project.getKey())
@@ -370,67 +976,6 @@ public class CommitListener implements EventListener {
         }
     }
 
-    /**
-     * <p>
-     * Given a FishEye repository key, returns the Crucible project that has
-     * this repository configured as its default.
-     * </p>
-     * <p>
-     * When no project is bound to the specified repository, or not enabled
-     * for automatic review creation, <code>null</code> is returned.
-     * </p>
-     * <p>
-     * This method must be invoked with admin permissions.
-     * </p>
-     *
-     * TODO: What to do when there are multiple projects?
-     *
-     * @param repoKey   a FishEye repository key (e.g. "CR").
-     * @return  the Crucible project that has the specified repository
-     *  configured as its default repo and has been enabled for automatic
-     *  review creation.
-     */
-    private ProjectData getEnabledProjectForRepository(String repoKey) {
-
-        final List<ProjectData> projects = projectService.getAllProjects();
-        final List<String> enabled = config.loadEnabledProjects();
-        for (ProjectData project : projects) {
-            if (repoKey.equals(project.getDefaultRepositoryName()) &&
-                    enabled.contains(project.getKey())) {
-                return project;
-            }
-        }
-        return null;
-    }
-
-    /**
-     * Returns a map containing all committer names that are mapped to Crucible
-     * user accounts.
-     * This is an expensive operation that will be redundant when the fecru SPI
-     * gets a <code>CommitterMapperService</code>.
-     * <p>
-     * This method must be invoked with admin permissions.
-     * </p>
-     *
-     * @param   repoKey
-     * @return
-     */
-    private Map<String, UserData> loadCommitterMappings(final String repoKey)
-            throws ServerException {
-
-        final Map<String, UserData> committerToUser = new HashMap<String, UserData>();
-        for (UserData ud : userService.getAllUsers()) {
-            final UserProfileData profile = userService.getUserProfile(ud.getUserName());
-            final List<String> committers = profile.getMappedCommitters().get(repoKey);
-            if (committers != null) {
-                for (String committer : committers) {
-                    committerToUser.put(committer, ud);
-                }
-            }
-        }
-        return committerToUser;
-    }
-    
     private boolean isPluginEnabled() {
         return !StringUtils.isEmpty(config.loadRunAsUser());
     }
@@ -0,0 +1,32 @@
+package com.atlassian.example.reviewcreator;
+
+/**
+ * A unit of work for the {@link CommitWorkQueue}: a single changeset that
+ * still needs to be run through review creation. Deliberately lightweight, so
+ * that queueing it is all the FishEye event thread has to do.
+ *
+ * @since   v1.8
+ */
+public class CommitWork {
+
+    private final String repositoryName;
+    private final String changesetId;
+
+    public CommitWork(String repositoryName, String changesetId) {
+        this.repositoryName = repositoryName;
+        this.changesetId = changesetId;
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    public String getChangesetId() {
+        return changesetId;
+    }
+
+    @Override
+    public String toString() {
+        return repositoryName + ":" + changesetId;
+    }
+}
@@ -0,0 +1,576 @@
+package com.atlassian.example.reviewcreator;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Bounded queue of commits waiting for review creation, drained by a
+ * configurable pool of worker threads.
+ * </p>
+ * <p>
+ * The {@link CommitListener} only enqueues a {@link CommitWork} item from the
+ * FishEye event thread, so a large push no longer holds up other listeners.
+ * When the queue is full, the configured {@link OverflowPolicy} decides
+ * whether the event thread waits, the oldest queued commit is dropped, or the
+ * commit is spilled to disk and queued again once the backlog has drained.
+ * </p>
+ * <p>
+ * Commits are queued in a separate lane per repository. A lane is processed
+ * serially, so the commits of a repository, and therefore of each of its
+ * branches, are processed in the order they arrived. The workers take turns
+ * on the lanes with queued commits, processing one commit per turn, so a
+ * bulk import into one repository does not hold up the others. Besides the
+ * overall capacity, every lane has its own capacity; a repository whose lane
+ * is full is subject to the overflow policy while the others are not.
+ * </p>
+ * <p>
+ * Besides commits, a lane can be given {@link #execute tasks} that must run
+ * serially with the repository's commits, such as processing a batch of
+ * coalesced commits. They run ahead of the lane's queued commits.
+ * </p>
+ * <p>
+ * A commit that is given up on for good, because it was dropped to make
+ * room, could not be spilled, or there is no processor, is marked done in the
+ * {@link CommitJournal}, so that it is neither replayed nor kept in memory.
+ * Commits discarded because the plugin is shutting down, or because a
+ * submitter was interrupted while waiting for room, are deliberately left
+ * outstanding, so that they are replayed on the next start.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class CommitWorkQueue implements DisposableBean {
+
+    /**
+     * Does the actual review creation for a queued commit. Invoked on one of
+     * the queue's worker threads.
+     */
+    public interface Processor {
+        void process(CommitWork work);
+    }
+
+    private static final String SPILL_FILE = "spilled-commits.txt";
+
+    private final Logger logger = LoggerFactory.getLogger(CommitWorkQueue.class);
+
+    private final ConfigurationManager config;
+    private final PluginDataDirectory dataDirectory;
+    private final CommitJournal journal;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Guards the lanes and the number of queued commits. Waited on by
+     * submitters that block for room.
+     */
+    private final Object lock = new Object();
+    private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+    private int queued;
+    /**
+     * Repositories with commits in the spill file. Their new commits are
+     * spilled as well, so that they stay in order.
+     */
+    private final Set<String> spilledRepositories = new HashSet<String>();
+
+    private final Object spillLock = new Object();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong spillPending = new AtomicLong();
+
+    private volatile Processor processor;
+    private volatile OverflowPolicy policy;
+    private volatile int capacity;
+    private volatile int laneCapacity;
+    private volatile boolean destroyed;
+
+    public CommitWorkQueue(ConfigurationManager config, PluginDataDirectory dataDirectory, CommitJournal journal) {
+        this.config = config;
+        this.dataDirectory = dataDirectory;
+        this.journal = journal;
+        // only ever holds one turn per lane, so it needs no bound of its own:
+        this.executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("worker"));
+        this.executor.allowCoreThreadTimeOut(true);
+        reconfigure();
+        spillPending.set(countSpilled());
+    }
+
+    public void setProcessor(Processor processor) {
+        this.processor = processor;
+        drainSpill();
+    }
+
+    /**
+     * Queues a commit for processing, applying the configured overflow policy
+     * when the queue or the commit's lane is full.
+     */
+    public void submit(CommitWork work) {
+
+        synchronized (lock) {
+            Lane lane = getLane(work.getRepositoryName());
+            while (isFull(lane) && policy == OverflowPolicy.BLOCK && !destroyed) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("Interrupted while waiting for room in the queue, discarding changeset " + work);
+                    dropped.incrementAndGet();
+                    removeIfIdle(lane);
+                    return;
+                }
+                // the lane may have drained and been removed in the meantime:
+                lane = getLane(work.getRepositoryName());
+            }
+            if (destroyed) {
+                logger.warn("Plugin is shutting down, discarding changeset " + work);
+                dropped.incrementAndGet();
+                removeIfIdle(lane);
+                return;
+            }
+            final boolean spilledBefore = spilledRepositories.contains(work.getRepositoryName());
+            if (!spilledBefore && !isFull(lane)) {
+                enqueue(lane, work);
+                return;
+            }
+            if (!spilledBefore && policy == OverflowPolicy.DROP_OLDEST) {
+                final CommitWork evicted = evictOldest(lane);
+                logger.warn("Work queue is full, discarding changeset " + evicted);
+                discard(evicted);
+                enqueue(lane, work);
+                return;
+            }
+            removeIfIdle(lane);
+        }
+        // spill outside the lock, drainSpill() acquires them the other way around:
+        spill(work);
+    }
+
+    /**
+     * Runs the task on the lane of the specified repository, on its next
+     * turn, ahead of the commits queued there. Tasks do not count against
+     * the capacities, so callers must bound their number themselves.
+     *
+     * @return  <code>false</code> if the queue is shutting down, in which case
+     * the task was not accepted.
+     */
+    public boolean execute(String repositoryName, Runnable task) {
+        synchronized (lock) {
+            if (destroyed) {
+                return false;
+            }
+            final Lane lane = getLane(repositoryName);
+            lane.tasks.add(task);
+            schedule(lane);
+            return true;
+        }
+    }
+
+    /**
+     * Applies the current worker pool and queue settings. All changes take
+     * effect immediately; lowering a capacity does not discard commits that
+     * are already queued.
+     */
+    public synchronized void reconfigure() {
+
+        final int threads = Math.max(1, config.loadWorkerThreads());
+        synchronized (lock) {
+            capacity = Math.max(1, config.loadQueueCapacity());
+            laneCapacity = Math.max(1, config.loadLaneCapacity());
+            policy = config.loadOverflowPolicy();
+            lock.notifyAll();
+        }
+
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return queued;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getLaneCapacity() {
+        return laneCapacity;
+    }
+
+    /**
+     * @return  the number of repositories with queued or running commits.
+     */
+    public int getLaneCount() {
+        synchronized (lock) {
+            return lanes.size();
+        }
+    }
+
+    /**
+     * @return  the number of queued commits of the repository with the most.
+     */
+    public int getMaxLaneDepth() {
+        synchronized (lock) {
+            int max = 0;
+            for (Lane lane : lanes.values()) {
+                max = Math.max(max, lane.commits.size());
+            }
+            return max;
+        }
+    }
+
+    public int getActiveWorkers() {
+        return executor.getActiveCount();
+    }
+
+    public int getWorkerThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getSpilledCount() {
+        return spilled.get();
+    }
+
+    /**
+     * @return  the number of commits currently waiting in the spill file.
+     */
+    public long getSpillPending() {
+        return spillPending.get();
+    }
+
+    public void destroy() {
+        synchronized (lock) {
+            destroyed = true;
+            lock.notifyAll();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Must be called while holding {@link #lock}.
+     */
+    private Lane getLane(String repositoryName) {
+        Lane lane = lanes.get(repositoryName);
+        if (lane == null) {
+            lane = new Lane(repositoryName);
+            lanes.put(repositoryName, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Forgets a lane that has nothing queued. Must be called while holding
+     * {@link #lock}.
+     */
+    private void removeIfIdle(Lane lane) {
+        if (lane.isEmpty() && !lane.scheduled && lanes.get(lane.repositoryName) == lane) {
+            lanes.remove(lane.repositoryName);
+        }
+    }
+
+    /**
+     * Must be called while holding {@link #lock}.
+     */
+    private boolean isFull(Lane lane) {
+        return queued >= capacity || lane.commits.size() >= laneCapacity;
+    }
+
+    /**
+     * Adds the commit to its lane and gives the lane a turn if it is idle.
+     * Must be called while holding {@link #lock}.
+     */
+    private void enqueue(Lane lane, CommitWork work) {
+        lane.commits.add(work);
+        queued++;
+        schedule(lane);
+    }
+
+    /**
+     * Gives the lane a turn if it is idle. Must be called while holding
+     * {@link #lock}.
+     */
+    private void schedule(Lane lane) {
+        if (!lane.scheduled) {
+            lane.scheduled = true;
+            executor.execute(lane);
+        }
+    }
+
+    /**
+     * Removes the oldest commit of the specified lane when that is full, or
+     * else of the deepest lane, to make room in a full queue. Must be called
+     * while holding {@link #lock}.
+     *
+     * @return  the removed commit.
+     */
+    private CommitWork evictOldest(Lane lane) {
+        Lane victim = lane;
+        if (lane.commits.size() < laneCapacity) {
+            for (Lane candidate : lanes.values()) {
+                if (candidate.commits.size() > victim.commits.size()) {
+                    victim = candidate;
+                }
+            }
+        }
+        queued--;
+        return victim.commits.poll();
+    }
+
+    /**
+     * Queues a commit if there is room in the queue and in its lane, without
+     * applying the overflow policy.
+     *
+     * @return  <code>false</code> if there was no room.
+     */
+    private boolean offer(CommitWork work) {
+        synchronized (lock) {
+            final Lane lane = getLane(work.getRepositoryName());
+            if (destroyed || isFull(lane)) {
+                removeIfIdle(lane);
+                return false;
+            }
+            enqueue(lane, work);
+            return true;
+        }
+    }
+
+    /**
+     * Gives up on a commit for good, so that it is not replayed either.
+     */
+    private void discard(CommitWork work) {
+        dropped.incrementAndGet();
+        journal.markDone(work.getRepositoryName(), work.getChangesetId());
+    }
+
+    private void spill(CommitWork work) {
+        synchronized (spillLock) {
+            Writer writer = null;
+            try {
+                writer = new FileWriter(dataDirectory.getFile(SPILL_FILE), true);
+                writer.write(work.getRepositoryName() + "\t" + work.getChangesetId() + "\n");
+                spilled.incrementAndGet();
+                spillPending.incrementAndGet();
+                synchronized (lock) {
+                    spilledRepositories.add(work.getRepositoryName());
+                }
+            } catch (IOException e) {
+                discard(work);
+                logger.error(String.format("Unable to spill changeset %s, it will not be reviewed: %s",
+                        work, e.getMessage()), e);
+            } finally {
+                closeQuietly(writer);
+            }
+        }
+    }
+
+    /**
+     * Moves spilled commits back into the queue, as far as there is room for
+     * them. Only does so once the queue is at most half full, so that a
+     * sustained burst does not make commits bounce between the queue and the
+     * spill file. Once a commit does not fit into its lane, the later commits
+     * of its repository stay in the spill file too.
+     */
+    private void drainSpill() {
+
+        if (spillPending.get() == 0 || destroyed || getQueueDepth() > capacity / 2) {
+            return;
+        }
+        synchronized (spillLock) {
+            final File file = dataDirectory.getFile(SPILL_FILE);
+            final List<String> remaining = new ArrayList<String>();
+            final Set<String> blocked = new HashSet<String>();
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(file));
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    final String[] fields = StringUtils.split(line, '\t');
+                    if (fields == null || fields.length != 2) {
+                        continue;
+                    }
+                    if (blocked.contains(fields[0]) || !offer(new CommitWork(fields[0], fields[1]))) {
+                        blocked.add(fields[0]);
+                        remaining.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Unable to read spilled commits: " + e.getMessage(), e);
+                return;
+            } finally {
+                closeQuietly(reader);
+            }
+
+            Writer writer = null;
+            try {
+                writer = new FileWriter(file, false);
+                for (String line : remaining) {
+                    writer.write(line + "\n");
+                }
+                spillPending.set(remaining.size());
+                synchronized (lock) {
+                    spilledRepositories.retainAll(blocked);
+                }
+            } catch (IOException e) {
+                logger.error("Unable to rewrite spilled commits: " + e.getMessage(), e);
+            } finally {
+                closeQuietly(writer);
+            }
+        }
+    }
+
+    private long countSpilled() {
+        final File file = dataDirectory.getFile(SPILL_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        BufferedReader reader = null;
+        try {
+            long count = 0;
+            reader = new BufferedReader(new FileReader(file));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                final String[] fields = StringUtils.split(line, '\t');
+                if (fields != null && fields.length == 2) {
+                    spilledRepositories.add(fields[0]);
+                }
+                count++;
+            }
+            return count;
+        } catch (IOException e) {
+            logger.warn("Unable to read spilled commits: " + e.getMessage(), e);
+            return 0;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * The queued commits and tasks of one repository. Runs as a turn on the
+     * worker pool: runs the oldest task or, if there is none, processes the
+     * oldest commit and, if more are queued, goes to the back of the line for
+     * its next turn. At most one turn is scheduled at a
+     * time, which makes the lane serial.
+     */
+    private class Lane implements Runnable {
+
+        private final String repositoryName;
+        private final Queue<CommitWork> commits = new LinkedList<CommitWork>();
+        private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+        private boolean scheduled;
+
+        Lane(String repositoryName) {
+            this.repositoryName = repositoryName;
+        }
+
+        public void run() {
+
+            final Runnable task;
+            final CommitWork work;
+            synchronized (lock) {
+                task = tasks.poll();
+                work = task == null ? commits.poll() : null;
+                if (work != null) {
+                    queued--;
+                    lock.notifyAll();
+                }
+            }
+            try {
+                if (task != null) {
+                    runTask(task);
+                } else if (work != null) {
+                    process(work);
+                }
+            } finally {
+                synchronized (lock) {
+                    if (isEmpty() || destroyed) {
+                        scheduled = false;
+                        removeIfIdle(this);
+                    } else {
+                        executor.execute(this);
+                    }
+                }
+                drainSpill();
+            }
+        }
+
+        /**
+         * Must be called while holding {@link #lock}.
+         */
+        boolean isEmpty() {
+            return commits.isEmpty() && tasks.isEmpty();
+        }
+
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error(String.format("Unable to run a task for repository %s: %s",
+                        repositoryName, e.getMessage()), e);
+            }
+        }
+
+        private void process(CommitWork work) {
+            try {
+                final Processor current = processor;
+                if (current == null) {
+                    logger.error("No processor registered, discarding changeset " + work);
+                    discard(work);
+                } else {
+                    current.process(work);
+                    processed.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                logger.error(String.format("Unable to process changeset %s: %s", work, e.getMessage()), e);
+            }
+        }
+    }
+}
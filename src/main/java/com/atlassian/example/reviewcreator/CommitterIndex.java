@@ -0,0 +1,592 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.crucible.spi.data.UserData;
+import com.atlassian.crucible.spi.data.UserProfileData;
+import com.atlassian.crucible.spi.services.ImpersonationService;
+import com.atlassian.crucible.spi.services.Operation;
+import com.atlassian.crucible.spi.services.ServerException;
+import com.atlassian.crucible.spi.services.UserService;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Long-lived, thread-safe index of committer names to Crucible user accounts,
+ * kept per FishEye repository.
+ * </p>
+ * <p>
+ * Building the index means walking the entire user directory and fetching
+ * every user's profile, which is far too expensive to do for each commit.
+ * Instead the index is built once, on first use, and then refreshed in the
+ * background. When a user's committer mappings are known to have changed,
+ * {@link #invalidateUser(String)} re-reads only that user's profile.
+ * </p>
+ * <p>
+ * Readers always see a complete, immutable snapshot; updates build a new
+ * snapshot and swap it in. Users invalidated while a refresh reads the user
+ * directory are updated again in the refreshed snapshot, as the refresh may
+ * have read them before they changed.
+ * </p>
+ * <p>
+ * Changed snapshots are saved to a binary file in the plugin's data
+ * directory every {@link #SAVE_INTERVAL_MINUTES} minutes and when the plugin
+ * stops. On startup that file is memory-mapped and, if its format version
+ * matches, its checksum is intact and it is no older than
+ * {@link #MAX_SNAPSHOT_AGE_MILLIS}, serves lookups right away while a
+ * background refresh reconciles it with the user directory.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class CommitterIndex implements DisposableBean {
+
+    private static final long REFRESH_INTERVAL_MINUTES = 15;
+    private static final long SAVE_INTERVAL_MINUTES = 1;
+    static final long MAX_SNAPSHOT_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final String SNAPSHOT_FILE = "committer-index.bin";
+    private static final String SNAPSHOT_TMP_FILE = "committer-index.tmp";
+    private static final int SNAPSHOT_MAGIC = 0x52434349;     // "RCCI"
+    private static final int SNAPSHOT_FORMAT = 1;
+    private static final int HEADER_BYTES = 24;
+
+    private final Logger logger = LoggerFactory.getLogger(CommitterIndex.class);
+
+    private final UserService userService;
+    private final ImpersonationService impersonator;
+    private final ConfigurationManager config;
+    private final PluginDataDirectory dataDirectory;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object buildLock = new Object();
+    private final AtomicBoolean buildScheduled = new AtomicBoolean();
+    private final long startedAt = System.currentTimeMillis();
+    private volatile Snapshot snapshot;
+    /**
+     * The number of refreshes in progress, and the users invalidated while
+     * any were, in the order they were invalidated. Guarded by
+     * {@link #buildLock}.
+     */
+    private int refreshing;
+    private final List<Invalidation> invalidations = new ArrayList<Invalidation>();
+    /**
+     * The snapshot that was last saved or loaded, guarded by the lock on
+     * this instance.
+     */
+    private Snapshot saved;
+
+    public CommitterIndex(ConfigurationManager config,
+            UserService userService,
+            ImpersonationService impersonator,
+            PluginDataDirectory dataDirectory) {
+
+        this.config = config;
+        this.userService = userService;
+        this.impersonator = impersonator;
+        this.dataDirectory = dataDirectory;
+        this.snapshot = load();
+        this.saved = snapshot;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("committer-index"));
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (snapshot != null) {
+                    refresh();
+                }
+            }
+        }, REFRESH_INTERVAL_MINUTES, REFRESH_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                save();
+            }
+        }, SAVE_INTERVAL_MINUTES, SAVE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        if (snapshot != null) {
+            // the saved mappings may be outdated:
+            refreshAsync();
+        }
+    }
+
+    /**
+     * Returns all committer names of the specified repository that are mapped
+     * to Crucible user accounts. The first call builds the index, after which
+     * this is a constant-time lookup.
+     * <p>
+     * This method must be invoked with admin permissions.
+     * </p>
+     *
+     * @param   repoKey a FishEye repository key (e.g. "CR").
+     * @return  an immutable map of committer name to Crucible user, never
+     * <code>null</code>.
+     */
+    public Map<String, UserData> getCommitterMappings(String repoKey) throws ServerException {
+
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (buildLock) {
+                current = snapshot;
+                if (current == null) {
+                    current = buildSnapshot();
+                    snapshot = current;
+                }
+            }
+        }
+        final Map<String, UserData> mappings = current.byRepository.get(repoKey);
+        return mappings == null ? Collections.<String, UserData>emptyMap() : mappings;
+    }
+
+    /**
+     * @return  the names of all users in the directory as of the last
+     * (partial) rebuild of the index, or <code>null</code> when the index has
+     * not been built yet. Users created since then are missing.
+     */
+    public Set<String> getUsernames() {
+        final Snapshot current = snapshot;
+        return current == null ? null : Collections.unmodifiableSet(current.users.keySet());
+    }
+
+    /**
+     * @return  when the user directory was read for the current mappings,
+     * or <code>null</code> when the index has not been built yet.
+     */
+    public Date getBuiltAt() {
+        final Snapshot current = snapshot;
+        return current == null ? null : new Date(current.created);
+    }
+
+    /**
+     * @return  whether the current mappings were read from the user directory
+     * since the plugin started, rather than loaded from the saved snapshot,
+     * which may be days old.
+     */
+    public boolean isBuiltSinceStart() {
+        final Snapshot current = snapshot;
+        return current != null && current.created >= startedAt;
+    }
+
+    /**
+     * Re-reads the profile of a single user and updates that user's committer
+     * mappings across all repositories. Does nothing when the index has not
+     * been built yet.
+     *
+     * @param username  the Crucible username whose profile changed.
+     */
+    public void invalidateUser(final String username) {
+
+        if (snapshot == null || !isPluginEnabled()) {
+            return;
+        }
+        try {
+            impersonator.doAsUser(null, config.loadRunAsUser(), new Operation<Void, ServerException>() {
+                public Void perform() throws ServerException {
+                    final UserData user = userService.getUser(username);
+                    final UserProfileData profile = userService.getUserProfile(username);
+                    synchronized (buildLock) {
+                        snapshot = snapshot.withUser(username, user, profile.getMappedCommitters());
+                        if (refreshing > 0) {
+                            invalidations.add(new Invalidation(username, user, profile.getMappedCommitters()));
+                        }
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            logger.warn(String.format("Unable to refresh committer mappings for user %s: %s",
+                    username, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Builds the index now, unless it was built before, so that the first
+     * commit does not have to. Does nothing while the plugin is disabled.
+     */
+    public void warm() throws ServerException {
+
+        if (snapshot != null || !isPluginEnabled()) {
+            return;
+        }
+        impersonator.doAsUser(null, config.loadRunAsUser(), new Operation<Void, ServerException>() {
+            public Void perform() throws ServerException {
+                getCommitterMappings("");
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Schedules {@link #warm()} on the index's background thread, unless it
+     * is scheduled already, and returns immediately. Lookups that cannot
+     * wait for the index to be built use this rather than building it on
+     * their own thread.
+     */
+    public void buildAsync() {
+        if (snapshot != null || !buildScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    buildScheduled.set(false);
+                    try {
+                        warm();
+                    } catch (Exception e) {
+                        logger.warn("Unable to build committer mappings: " + e.getMessage(), e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            buildScheduled.set(false);
+        }
+    }
+
+    /**
+     * Rebuilds the entire index from the user directory and swaps it in. The
+     * previous snapshot keeps serving lookups while the rebuild runs.
+     */
+    public void refresh() {
+
+        if (!isPluginEnabled()) {
+            return;
+        }
+        final int invalidatedBefore;
+        synchronized (buildLock) {
+            refreshing++;
+            invalidatedBefore = invalidations.size();
+        }
+        try {
+            Snapshot fresh = impersonator.doAsUser(null, config.loadRunAsUser(), new Operation<Snapshot, ServerException>() {
+                public Snapshot perform() throws ServerException {
+                    return buildSnapshot();
+                }
+            });
+            synchronized (buildLock) {
+                // the directory may have been read before these users changed:
+                for (Invalidation invalidation : invalidations.subList(invalidatedBefore, invalidations.size())) {
+                    fresh = fresh.withUser(invalidation.username, invalidation.user, invalidation.committers);
+                }
+                snapshot = fresh;
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to refresh committer mappings: " + e.getMessage(), e);
+        } finally {
+            synchronized (buildLock) {
+                if (--refreshing == 0) {
+                    invalidations.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules {@link #refresh()} on the index's background thread and
+     * returns immediately.
+     */
+    public void refreshAsync() {
+        scheduler.execute(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        });
+    }
+
+    public void destroy() {
+        scheduler.shutdownNow();
+        save();
+    }
+
+    /**
+     * This is an expensive operation that will be redundant when the fecru SPI
+     * gets a <code>CommitterMapperService</code>.
+     * <p>
+     * This method must be invoked with admin permissions.
+     * </p>
+     */
+    private Snapshot buildSnapshot() throws ServerException {
+
+        final long start = System.currentTimeMillis();
+        final Map<String, Map<String, List<String>>> committersByUser = new HashMap<String, Map<String, List<String>>>();
+        final Map<String, UserData> users = new HashMap<String, UserData>();
+        for (UserData ud : userService.getAllUsers()) {
+            final UserProfileData profile = userService.getUserProfile(ud.getUserName());
+            users.put(ud.getUserName(), ud);
+            committersByUser.put(ud.getUserName(), profile.getMappedCommitters());
+        }
+        final Snapshot result = new Snapshot(start, users, committersByUser);
+        logger.info(String.format("Indexed committer mappings of %d users in %d ms.",
+                users.size(), System.currentTimeMillis() - start));
+        return result;
+    }
+
+    private boolean isPluginEnabled() {
+        return !StringUtils.isEmpty(config.loadRunAsUser());
+    }
+
+    /**
+     * Writes the current snapshot to the data directory, unless it was
+     * written before.
+     */
+    private synchronized void save() {
+
+        final Snapshot current = snapshot;
+        if (current == null || current == saved) {
+            return;
+        }
+        final File file = dataDirectory.getFile(SNAPSHOT_FILE);
+        final File tmp = dataDirectory.getFile(SNAPSHOT_TMP_FILE);
+        try {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            writeBody(new DataOutputStream(body), current);
+            final CRC32 crc = new CRC32();
+            crc.update(body.toByteArray());
+
+            final FileOutputStream fileOut = new FileOutputStream(tmp);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_FORMAT);
+                out.writeLong(current.created);
+                out.writeInt(body.size());
+                out.writeInt((int) crc.getValue());
+                body.writeTo(out);
+                out.flush();
+                fileOut.getChannel().force(false);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Unable to replace " + file + " with " + tmp);
+            }
+            saved = current;
+            logger.debug(String.format("Saved the committer mappings of %d users.", current.users.size()));
+        } catch (IOException e) {
+            logger.warn("Unable to save the committer mappings, the next start will rebuild them: " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeBody(DataOutputStream out, Snapshot snapshot) throws IOException {
+
+        out.writeInt(snapshot.users.size());
+        for (UserData user : snapshot.users.values()) {
+            writeString(out, user.getUserName());
+            writeString(out, user.getDisplayName());
+            writeString(out, user.getAvatarUrl());
+            final Map<String, List<String>> repositories = snapshot.committersByUser.get(user.getUserName());
+            out.writeInt(repositories == null ? -1 : repositories.size());
+            if (repositories != null) {
+                for (Map.Entry<String, List<String>> repository : repositories.entrySet()) {
+                    writeString(out, repository.getKey());
+                    out.writeInt(repository.getValue() == null ? -1 : repository.getValue().size());
+                    if (repository.getValue() != null) {
+                        for (String committer : repository.getValue()) {
+                            writeString(out, committer);
+                        }
+                    }
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads the snapshot saved by a previous run.
+     *
+     * @return  the snapshot, or <code>null</code> if there is none, or it
+     * is outdated or damaged.
+     */
+    private Snapshot load() {
+
+        final File file = dataDirectory.getFile(SNAPSHOT_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            final ByteBuffer buf;
+            try {
+                // the mapping stays valid after the file is closed:
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+
+            if (buf.remaining() < HEADER_BYTES || buf.getInt() != SNAPSHOT_MAGIC || buf.getInt() != SNAPSHOT_FORMAT) {
+                logger.info("Ignoring the saved committer mappings, they were written by a different version.");
+                return null;
+            }
+            final long created = buf.getLong();
+            final long age = System.currentTimeMillis() - created;
+            if (age < 0 || age > MAX_SNAPSHOT_AGE_MILLIS) {
+                logger.info(String.format("Ignoring the saved committer mappings of %s, they are too old.", new Date(created)));
+                return null;
+            }
+            final int length = buf.getInt();
+            final int checksum = buf.getInt();
+            if (length != buf.remaining() || checksum != checksum(buf)) {
+                logger.warn("Ignoring the saved committer mappings, the file is damaged.");
+                return null;
+            }
+
+            final Map<String, UserData> users = new HashMap<String, UserData>();
+            final Map<String, Map<String, List<String>>> committersByUser = new HashMap<String, Map<String, List<String>>>();
+            for (int i = buf.getInt(); i > 0; i--) {
+                final UserData user = new UserData(readString(buf), readString(buf), readString(buf));
+                Map<String, List<String>> repositories = null;
+                final int repositoryCount = buf.getInt();
+                if (repositoryCount >= 0) {
+                    repositories = new HashMap<String, List<String>>();
+                    for (int j = 0; j < repositoryCount; j++) {
+                        final String repository = readString(buf);
+                        List<String> committers = null;
+                        final int committerCount = buf.getInt();
+                        if (committerCount >= 0) {
+                            committers = new ArrayList<String>(committerCount);
+                            for (int k = 0; k < committerCount; k++) {
+                                committers.add(readString(buf));
+                            }
+                        }
+                        repositories.put(repository, committers);
+                    }
+                }
+                users.put(user.getUserName(), user);
+                committersByUser.put(user.getUserName(), repositories);
+            }
+            logger.info(String.format("Loaded the committer mappings of %d users as of %s.", users.size(), new Date(created)));
+            return new Snapshot(created, users, committersByUser);
+        } catch (IOException e) {
+            logger.warn("Unable to read the saved committer mappings: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            logger.warn("Ignoring the saved committer mappings, the file is damaged: " + e, e);
+        }
+        return null;
+    }
+
+    /**
+     * @return  the CRC-32 of the remaining bytes, without consuming them.
+     */
+    private static int checksum(ByteBuffer buf) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer body = buf.duplicate();
+        final byte[] chunk = new byte[8192];
+        while (body.hasRemaining()) {
+            final int length = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buf) throws IOException {
+        final int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * A user's profile as re-read by {@link #invalidateUser}.
+     */
+    private static class Invalidation {
+
+        private final String username;
+        private final UserData user;
+        private final Map<String, List<String>> committers;
+
+        Invalidation(String username, UserData user, Map<String, List<String>> committers) {
+            this.username = username;
+            this.user = user;
+            this.committers = committers;
+        }
+    }
+
+    /**
+     * Immutable state of the index.
+     */
+    private static class Snapshot {
+
+        /**
+         * When the user directory was read.
+         */
+        private final long created;
+        private final Map<String, UserData> users;
+        private final Map<String, Map<String, List<String>>> committersByUser;
+        private final Map<String, Map<String, UserData>> byRepository;
+
+        Snapshot(long created, Map<String, UserData> users, Map<String, Map<String, List<String>>> committersByUser) {
+
+            this.created = created;
+            this.users = users;
+            this.committersByUser = committersByUser;
+
+            final Map<String, Map<String, UserData>> index = new HashMap<String, Map<String, UserData>>();
+            for (Map.Entry<String, Map<String, List<String>>> user : committersByUser.entrySet()) {
+                if (user.getValue() == null) {
+                    continue;
+                }
+                for (Map.Entry<String, List<String>> repo : user.getValue().entrySet()) {
+                    Map<String, UserData> committers = index.get(repo.getKey());
+                    if (committers == null) {
+                        committers = new HashMap<String, UserData>();
+                        index.put(repo.getKey(), committers);
+                    }
+                    if (repo.getValue() != null) {
+                        for (String committer : repo.getValue()) {
+                            committers.put(committer, users.get(user.getKey()));
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<String, Map<String, UserData>> repo : index.entrySet()) {
+                repo.setValue(Collections.unmodifiableMap(repo.getValue()));
+            }
+            this.byRepository = Collections.unmodifiableMap(index);
+        }
+
+        Snapshot withUser(String username, UserData user, Map<String, List<String>> committers) {
+
+            final Map<String, UserData> newUsers = new HashMap<String, UserData>(users);
+            final Map<String, Map<String, List<String>>> newCommitters =
+                    new HashMap<String, Map<String, List<String>>>(committersByUser);
+            newUsers.put(username, user);
+            newCommitters.put(username, committers);
+            return new Snapshot(created, newUsers, newCommitters);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.atlassian.example.reviewcreator;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Manages plugin settings serialization and persistence.
@@ -9,6 +10,21 @@ import java.util.List;
  */
 public interface ConfigurationManager {
 
+    /**
+     * @since   v1.8
+     * @return  all current settings as a single, immutable snapshot. This is
+     * served from memory and cheap enough to call for every commit.
+     */
+    ConfigurationSnapshot loadSnapshot();
+
+    /**
+     * Persists all settings of the specified snapshot and then makes them
+     * current in a single step, incrementing the configuration version.
+     *
+     * @since   v1.8
+     */
+    void storeSnapshot(ConfigurationSnapshot snapshot);
+
     String loadRunAsUser();
 
     void storeRunAsUser(String username);
@@ -50,4 +66,142 @@ public interface ConfigurationManager {
      * @since   v1.4.1
      */
     void storeIterative(boolean iterative);
+
+    /**
+     * @since   v1.8
+     * @return  the number of worker threads that process queued commits.
+     */
+    int loadWorkerThreads();
+
+    /**
+     * @since   v1.8
+     */
+    void storeWorkerThreads(int threads);
+
+    /**
+     * @since   v1.8
+     * @return  the maximum number of commits waiting to be processed.
+     */
+    int loadQueueCapacity();
+
+    /**
+     * @since   v1.8
+     */
+    void storeQueueCapacity(int capacity);
+
+    /**
+     * @since   v1.8
+     * @return  the maximum number of commits of a single repository waiting
+     * to be processed.
+     */
+    int loadLaneCapacity();
+
+    /**
+     * @since   v1.8
+     */
+    void storeLaneCapacity(int capacity);
+
+    /**
+     * @since   v1.8
+     */
+    OverflowPolicy loadOverflowPolicy();
+
+    /**
+     * @since   v1.8
+     */
+    void storeOverflowPolicy(OverflowPolicy policy);
+
+    /**
+     * @since   v1.8
+     * @return  the number of milliseconds to wait for more commits on the same
+     * branch before creating or appending to its review, 0 to disable.
+     */
+    long loadCoalesceWindow();
+
+    /**
+     * @since   v1.8
+     */
+    void storeCoalesceWindow(long millis);
+
+    /**
+     * @since   v1.8
+     * @return  the number of milliseconds to wait after creating a review
+     * before starting it. Also the base delay between retries.
+     */
+    long loadApproveDelay();
+
+    /**
+     * @since   v1.8
+     */
+    void storeApproveDelay(long millis);
+
+    /**
+     * @since   v1.8
+     * @return  how often starting a new review is retried when it fails.
+     */
+    int loadApproveRetries();
+
+    /**
+     * @since   v1.8
+     */
+    void storeApproveRetries(int retries);
+
+    /**
+     * @since   v1.8
+     * @return  the number of minutes a cached group membership is used
+     * before it is re-evaluated.
+     */
+    long loadGroupCacheTtl();
+
+    /**
+     * @since   v1.8
+     */
+    void storeGroupCacheTtl(long minutes);
+
+    /**
+     * @since   v1.8
+     * @return  the holiday calendar lines, as parsed by
+     * {@link HolidayCalendars}.
+     */
+    List<String> loadHolidays();
+
+    /**
+     * @since   v1.8
+     */
+    void storeHolidays(List<String> lines);
+
+    /**
+     * @since   v1.8
+     * @return  the branch rule lines, as parsed by {@link BranchRules}.
+     */
+    List<String> loadBranchRules();
+
+    /**
+     * @since   v1.8
+     */
+    void storeBranchRules(List<String> lines);
+
+    /**
+     * @since   v1.8
+     * @return  the number of minutes after which the lag between a commit
+     * and its review is flagged on the admin page.
+     */
+    long loadLagSlo();
+
+    /**
+     * @since   v1.8
+     */
+    void storeLagSlo(long minutes);
+
+    /**
+     * @since   v1.8
+     * @return  the number of seconds to wait for a call to each remote
+     * service, for all services.
+     */
+    Map<RemoteCallGuard.Service, Long> loadRemoteTimeouts();
+
+    /**
+     * @since   v1.8
+     */
+    void storeRemoteTimeouts(Map<RemoteCallGuard.Service, Long> seconds);
 }
@@ -5,11 +5,20 @@ import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 import org.apache.commons.lang.StringUtils;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Keeps the plugin settings in memory as an immutable
+ * {@link ConfigurationSnapshot}. The settings store is only read once; every
+ * <code>store*</code> method writes through to it and then swaps in a new
+ * snapshot with an incremented version.
+ */
 public class ConfigurationManagerImpl implements ConfigurationManager {
 
     // TODO: write an UpgradeTask to change these constant names to the plugin key
@@ -19,8 +28,30 @@ public class ConfigurationManagerImpl implements ConfigurationManager {
     private final String GROUP_CFG          = "com.example.reviewcreator.crucibleGroups";
     private final String CREATE_MODE_CFG    = "com.example.reviewcreator.createMode";
     private final String ITERATIVE_CFG      = "com.example.reviewcreator.iterative";
+    private final String WORKERS_CFG        = "com.example.reviewcreator.workerThreads";
+    private final String QUEUE_CAPACITY_CFG = "com.example.reviewcreator.queueCapacity";
+    private final String LANE_CAPACITY_CFG  = "com.example.reviewcreator.laneCapacity";
+    private final String OVERFLOW_CFG       = "com.example.reviewcreator.overflowPolicy";
+    private final String COALESCE_CFG       = "com.example.reviewcreator.coalesceWindow";
+    private final String APPROVE_DELAY_CFG  = "com.example.reviewcreator.approveDelay";
+    private final String APPROVE_RETRIES_CFG = "com.example.reviewcreator.approveRetries";
+    private final String GROUP_CACHE_TTL_CFG = "com.example.reviewcreator.groupCacheTtl";
+    private final String HOLIDAYS_CFG       = "com.example.reviewcreator.holidays";
+    private final String BRANCH_RULES_CFG   = "com.example.reviewcreator.branchRules";
+    private final String LAG_SLO_CFG        = "com.example.reviewcreator.lagSlo";
+    private final String REMOTE_TIMEOUTS_CFG = "com.example.reviewcreator.remoteTimeouts";
+    private final int DEFAULT_WORKERS       = 2;
+    private final int DEFAULT_QUEUE_CAPACITY = 1000;
+    private final int DEFAULT_LANE_CAPACITY = 250;
+    private final long DEFAULT_COALESCE_WINDOW = 2000;
+    private final long DEFAULT_APPROVE_DELAY = 500;
+    private final int DEFAULT_APPROVE_RETRIES = 3;
+    private final long DEFAULT_GROUP_CACHE_TTL = 15;
+    private final long DEFAULT_LAG_SLO = 15;
     private final PluginSettings store;
 
+    private volatile ConfigurationSnapshot snapshot;
+
     public ConfigurationManagerImpl(PluginSettingsFactory settingsFactory) {
         this(settingsFactory.createGlobalSettings());
     }
@@ -29,50 +60,286 @@ public class ConfigurationManagerImpl implements ConfigurationManager {
         this.store = store;
     }
 
+    public ConfigurationSnapshot loadSnapshot() {
+        ConfigurationSnapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = readSnapshot().withVersion(1);
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    public synchronized void storeSnapshot(ConfigurationSnapshot settings) {
+        store.put(RUNAS_CFG, settings.getRunAsUser());
+        storeStringList(PROJECTS_CFG, settings.getEnabledProjectList());
+        storeStringList(COMMITTER_CFG, settings.getCrucibleUserNames());
+        storeStringList(GROUP_CFG, settings.getCrucibleGroups());
+        store.put(CREATE_MODE_CFG, settings.getCreateMode().name());
+        store.put(ITERATIVE_CFG, Boolean.toString(settings.isIterative()));
+        store.put(WORKERS_CFG, Integer.toString(settings.getWorkerThreads()));
+        store.put(QUEUE_CAPACITY_CFG, Integer.toString(settings.getQueueCapacity()));
+        store.put(LANE_CAPACITY_CFG, Integer.toString(settings.getLaneCapacity()));
+        store.put(OVERFLOW_CFG, settings.getOverflowPolicy().name());
+        store.put(COALESCE_CFG, Long.toString(settings.getCoalesceWindow()));
+        store.put(APPROVE_DELAY_CFG, Long.toString(settings.getApproveDelay()));
+        store.put(APPROVE_RETRIES_CFG, Integer.toString(settings.getApproveRetries()));
+        store.put(GROUP_CACHE_TTL_CFG, Long.toString(settings.getGroupCacheTtl()));
+        storeLines(HOLIDAYS_CFG, settings.getHolidays());
+        storeLines(BRANCH_RULES_CFG, settings.getBranchRules());
+        store.put(LAG_SLO_CFG, Long.toString(settings.getLagSlo()));
+        storeTimeouts(settings.getRemoteTimeouts());
+        swap(settings);
+    }
+
     public String loadRunAsUser() {
-        final Object value = store.get(RUNAS_CFG);
-        return value == null ? null : value.toString();
+        return loadSnapshot().getRunAsUser();
     }
 
-    public void storeRunAsUser(String username) {
+    public synchronized void storeRunAsUser(String username) {
         store.put(RUNAS_CFG, username);
+        swap(loadSnapshot().toBuilder().setRunAsUser(username).build());
     }
 
     public CreateMode loadCreateMode() {
-        final Object value = store.get(CREATE_MODE_CFG);
-        try {
-            return value == null ? CreateMode.ALWAYS : CreateMode.valueOf(value.toString());
-        } catch(IllegalArgumentException e) {
-            return CreateMode.ALWAYS;
-        }
+        return loadSnapshot().getCreateMode();
     }
 
-    public void storeCreateMode(CreateMode mode) {
+    public synchronized void storeCreateMode(CreateMode mode) {
         store.put(CREATE_MODE_CFG, mode.name());
+        swap(loadSnapshot().toBuilder().setCreateMode(mode).build());
     }
 
     public List<String> loadEnabledProjects() {
-        return loadStringList(PROJECTS_CFG);
+        return loadSnapshot().getEnabledProjectList();
     }
 
-    public void storeEnabledProjects(List<String> projectKeys) {
+    public synchronized void storeEnabledProjects(List<String> projectKeys) {
         storeStringList(PROJECTS_CFG, projectKeys);
+        swap(loadSnapshot().toBuilder().setEnabledProjects(projectKeys).build());
     }
 
     public Collection<String> loadCrucibleUserNames() {
-        return loadStringList(COMMITTER_CFG);
+        return loadSnapshot().getCrucibleUserNames();
     }
 
-    public void storeCrucibleUserNames(Collection<String> usernames) {
+    public synchronized void storeCrucibleUserNames(Collection<String> usernames) {
         storeStringList(COMMITTER_CFG, usernames);
+        swap(loadSnapshot().toBuilder().setCrucibleUserNames(usernames).build());
     }
 
     public Collection<String> loadCrucibleGroups() {
-        return loadStringList(GROUP_CFG);
+        return loadSnapshot().getCrucibleGroups();
     }
 
-    public void storeCrucibleGroups(Collection<String> groupnames) {
+    public synchronized void storeCrucibleGroups(Collection<String> groupnames) {
         storeStringList(GROUP_CFG, groupnames);
+        swap(loadSnapshot().toBuilder().setCrucibleGroups(groupnames).build());
+    }
+
+    public boolean loadIterative() {
+        return loadSnapshot().isIterative();
+    }
+
+    public synchronized void storeIterative(boolean iterative) {
+        store.put(ITERATIVE_CFG, Boolean.toString(iterative));
+        swap(loadSnapshot().toBuilder().setIterative(iterative).build());
+    }
+
+    public int loadWorkerThreads() {
+        return loadSnapshot().getWorkerThreads();
+    }
+
+    public synchronized void storeWorkerThreads(int threads) {
+        store.put(WORKERS_CFG, Integer.toString(threads));
+        swap(loadSnapshot().toBuilder().setWorkerThreads(threads).build());
+    }
+
+    public int loadQueueCapacity() {
+        return loadSnapshot().getQueueCapacity();
+    }
+
+    public synchronized void storeQueueCapacity(int capacity) {
+        store.put(QUEUE_CAPACITY_CFG, Integer.toString(capacity));
+        swap(loadSnapshot().toBuilder().setQueueCapacity(capacity).build());
+    }
+
+    public int loadLaneCapacity() {
+        return loadSnapshot().getLaneCapacity();
+    }
+
+    public synchronized void storeLaneCapacity(int capacity) {
+        store.put(LANE_CAPACITY_CFG, Integer.toString(capacity));
+        swap(loadSnapshot().toBuilder().setLaneCapacity(capacity).build());
+    }
+
+    public OverflowPolicy loadOverflowPolicy() {
+        return loadSnapshot().getOverflowPolicy();
+    }
+
+    public synchronized void storeOverflowPolicy(OverflowPolicy policy) {
+        store.put(OVERFLOW_CFG, policy.name());
+        swap(loadSnapshot().toBuilder().setOverflowPolicy(policy).build());
+    }
+
+    public long loadCoalesceWindow() {
+        return loadSnapshot().getCoalesceWindow();
+    }
+
+    public synchronized void storeCoalesceWindow(long millis) {
+        store.put(COALESCE_CFG, Long.toString(millis));
+        swap(loadSnapshot().toBuilder().setCoalesceWindow(millis).build());
+    }
+
+    public long loadApproveDelay() {
+        return loadSnapshot().getApproveDelay();
+    }
+
+    public synchronized void storeApproveDelay(long millis) {
+        store.put(APPROVE_DELAY_CFG, Long.toString(millis));
+        swap(loadSnapshot().toBuilder().setApproveDelay(millis).build());
+    }
+
+    public int loadApproveRetries() {
+        return loadSnapshot().getApproveRetries();
+    }
+
+    public synchronized void storeApproveRetries(int retries) {
+        store.put(APPROVE_RETRIES_CFG, Integer.toString(retries));
+        swap(loadSnapshot().toBuilder().setApproveRetries(retries).build());
+    }
+
+    public long loadGroupCacheTtl() {
+        return loadSnapshot().getGroupCacheTtl();
+    }
+
+    public synchronized void storeGroupCacheTtl(long minutes) {
+        store.put(GROUP_CACHE_TTL_CFG, Long.toString(minutes));
+        swap(loadSnapshot().toBuilder().setGroupCacheTtl(minutes).build());
+    }
+
+    public List<String> loadHolidays() {
+        return loadSnapshot().getHolidays();
+    }
+
+    public synchronized void storeHolidays(List<String> lines) {
+        storeLines(HOLIDAYS_CFG, lines);
+        swap(loadSnapshot().toBuilder().setHolidays(lines).build());
+    }
+
+    public List<String> loadBranchRules() {
+        return loadSnapshot().getBranchRules();
+    }
+
+    public synchronized void storeBranchRules(List<String> lines) {
+        storeLines(BRANCH_RULES_CFG, lines);
+        swap(loadSnapshot().toBuilder().setBranchRules(lines).build());
+    }
+
+    public long loadLagSlo() {
+        return loadSnapshot().getLagSlo();
+    }
+
+    public synchronized void storeLagSlo(long minutes) {
+        store.put(LAG_SLO_CFG, Long.toString(minutes));
+        swap(loadSnapshot().toBuilder().setLagSlo(minutes).build());
+    }
+
+    public Map<RemoteCallGuard.Service, Long> loadRemoteTimeouts() {
+        return loadSnapshot().getRemoteTimeouts();
+    }
+
+    public synchronized void storeRemoteTimeouts(Map<RemoteCallGuard.Service, Long> seconds) {
+        storeTimeouts(seconds);
+        swap(loadSnapshot().toBuilder().setRemoteTimeouts(seconds).build());
+    }
+
+    /**
+     * Must be called while holding the lock on this instance.
+     */
+    private void swap(ConfigurationSnapshot settings) {
+        snapshot = settings.withVersion(loadSnapshot().getVersion() + 1);
+    }
+
+    private ConfigurationSnapshot readSnapshot() {
+        return new ConfigurationSnapshot.Builder()
+                .setRunAsUser(readRunAsUser())
+                .setEnabledProjects(loadStringList(PROJECTS_CFG))
+                .setCrucibleUserNames(loadStringList(COMMITTER_CFG))
+                .setCrucibleGroups(loadStringList(GROUP_CFG))
+                .setCreateMode(readCreateMode())
+                .setIterative(readIterative())
+                .setWorkerThreads(loadInt(WORKERS_CFG, DEFAULT_WORKERS))
+                .setQueueCapacity(loadInt(QUEUE_CAPACITY_CFG, DEFAULT_QUEUE_CAPACITY))
+                .setLaneCapacity(loadInt(LANE_CAPACITY_CFG, DEFAULT_LANE_CAPACITY))
+                .setOverflowPolicy(readOverflowPolicy())
+                .setCoalesceWindow(loadLong(COALESCE_CFG, DEFAULT_COALESCE_WINDOW))
+                .setApproveDelay(loadLong(APPROVE_DELAY_CFG, DEFAULT_APPROVE_DELAY))
+                .setApproveRetries(loadInt(APPROVE_RETRIES_CFG, DEFAULT_APPROVE_RETRIES))
+                .setGroupCacheTtl(loadLong(GROUP_CACHE_TTL_CFG, DEFAULT_GROUP_CACHE_TTL))
+                .setHolidays(loadLines(HOLIDAYS_CFG, Collections.<String>emptyList()))
+                .setBranchRules(loadLines(BRANCH_RULES_CFG, BranchRules.DEFAULT_RULES))
+                .setLagSlo(loadLong(LAG_SLO_CFG, DEFAULT_LAG_SLO))
+                .setRemoteTimeouts(readTimeouts())
+                .build();
+    }
+
+    private String readRunAsUser() {
+        final Object value = store.get(RUNAS_CFG);
+        return value == null ? null : value.toString();
+    }
+
+    private CreateMode readCreateMode() {
+        final Object value = store.get(CREATE_MODE_CFG);
+        try {
+            return value == null ? CreateMode.ALWAYS : CreateMode.valueOf(value.toString());
+        } catch(IllegalArgumentException e) {
+            return CreateMode.ALWAYS;
+        }
+    }
+
+    private boolean readIterative() {
+        final Object value = store.get(ITERATIVE_CFG);
+        return value == null ? false : Boolean.parseBoolean(value.toString());
+    }
+
+    private OverflowPolicy readOverflowPolicy() {
+        final Object value = store.get(OVERFLOW_CFG);
+        try {
+            return value == null ? OverflowPolicy.BLOCK : OverflowPolicy.valueOf(value.toString());
+        } catch(IllegalArgumentException e) {
+            return OverflowPolicy.BLOCK;
+        }
+    }
+
+    /**
+     * Stores the timeouts as <code>SERVICE=seconds</code> entries.
+     */
+    private void storeTimeouts(Map<RemoteCallGuard.Service, Long> seconds) {
+        final List<String> entries = new ArrayList<String>();
+        for (Map.Entry<RemoteCallGuard.Service, Long> entry : seconds.entrySet()) {
+            entries.add(entry.getKey().name() + "=" + entry.getValue());
+        }
+        storeStringList(REMOTE_TIMEOUTS_CFG, entries);
+    }
+
+    private Map<RemoteCallGuard.Service, Long> readTimeouts() {
+        final Map<RemoteCallGuard.Service, Long> result =
+                new EnumMap<RemoteCallGuard.Service, Long>(RemoteCallGuard.Service.class);
+        for (String entry : loadStringList(REMOTE_TIMEOUTS_CFG)) {
+            final int equals = entry.indexOf('=');
+            try {
+                result.put(RemoteCallGuard.Service.valueOf(entry.substring(0, Math.max(0, equals))),
+                        Long.parseLong(entry.substring(equals + 1)));
+            } catch (IllegalArgumentException e) {
+                // unknown service or not a number, use the default
+            }
+        }
+        return result;
     }
 
     private void storeStringList(String key, Iterable<String> strings) {
@@ -80,6 +347,22 @@ public class ConfigurationManagerImpl implements ConfigurationManager {
                 StringUtils.join(strings.iterator(), ';'));
     }
 
+    /**
+     * Stores settings that are edited one per line, and may contain any
+     * other character, such as ';' in a regular expression.
+     */
+    private void storeLines(String key, Iterable<String> lines) {
+        store.put(Assertions.notNull("PluginSettings key", key),
+                StringUtils.join(lines.iterator(), '\n'));
+    }
+
+    private List<String> loadLines(String key, List<String> defaultValue) {
+        final Object value = store.get(Assertions.notNull("PluginSettings key", key));
+        return value == null ?
+                defaultValue :
+                Arrays.asList(StringUtils.split(value.toString(), '\n'));
+    }
+
     private List<String> loadStringList(String key) {
         final Object value = store.get(Assertions.notNull("PluginSettings key", key));
         return value == null ?
@@ -87,14 +370,21 @@ public class ConfigurationManagerImpl implements ConfigurationManager {
                 Arrays.asList(StringUtils.split(value.toString(), ';'));
     }
 
-    public boolean loadIterative()
-    {
-        final Object value = store.get(ITERATIVE_CFG);
-        return value == null ? false : Boolean.parseBoolean(value.toString());
+    private int loadInt(String key, int defaultValue) {
+        final Object value = store.get(Assertions.notNull("PluginSettings key", key));
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
-    public void storeIterative(boolean iterative)
-    {
-        store.put(ITERATIVE_CFG, Boolean.toString(iterative));
+    private long loadLong(String key, long defaultValue) {
+        final Object value = store.get(Assertions.notNull("PluginSettings key", key));
+        try {
+            return value == null ? defaultValue : Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 }
@@ -0,0 +1,350 @@
+package com.atlassian.example.reviewcreator;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * Immutable view of all plugin settings at one point in time.
+ * </p>
+ * <p>
+ * The {@link ConfigurationManager} keeps the current snapshot in memory and
+ * swaps it atomically whenever a setting is stored, so readers never see a
+ * half-applied change and never have to go to the underlying settings store.
+ * Every swap increments the {@link #getVersion() version}, which lets caches
+ * derived from the configuration detect that they are stale.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class ConfigurationSnapshot {
+
+    private final long version;
+    private final String runAsUser;
+    private final ImmutableSet<String> enabledProjects;
+    private final ImmutableList<String> enabledProjectList;
+    private final ImmutableSet<String> crucibleUserNames;
+    private final ImmutableSet<String> crucibleGroups;
+    private final CreateMode createMode;
+    private final boolean iterative;
+    private final int workerThreads;
+    private final int queueCapacity;
+    private final int laneCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long coalesceWindow;
+    private final long approveDelay;
+    private final int approveRetries;
+    private final long groupCacheTtl;
+    private final ImmutableList<String> holidays;
+    private final ImmutableList<String> branchRules;
+    private final long lagSlo;
+    private final Map<RemoteCallGuard.Service, Long> remoteTimeouts;
+
+    private ConfigurationSnapshot(Builder builder, long version) {
+        this.version = version;
+        this.runAsUser = builder.runAsUser;
+        this.enabledProjects = ImmutableSet.copyOf(builder.enabledProjects);
+        this.enabledProjectList = ImmutableList.copyOf(enabledProjects);
+        this.crucibleUserNames = ImmutableSet.copyOf(builder.crucibleUserNames);
+        this.crucibleGroups = ImmutableSet.copyOf(builder.crucibleGroups);
+        this.createMode = builder.createMode;
+        this.iterative = builder.iterative;
+        this.workerThreads = builder.workerThreads;
+        this.queueCapacity = builder.queueCapacity;
+        this.laneCapacity = builder.laneCapacity;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.coalesceWindow = builder.coalesceWindow;
+        this.approveDelay = builder.approveDelay;
+        this.approveRetries = builder.approveRetries;
+        this.groupCacheTtl = builder.groupCacheTtl;
+        this.holidays = ImmutableList.copyOf(builder.holidays);
+        this.branchRules = ImmutableList.copyOf(builder.branchRules);
+        this.lagSlo = builder.lagSlo;
+        final Map<RemoteCallGuard.Service, Long> timeouts =
+                new EnumMap<RemoteCallGuard.Service, Long>(RemoteCallGuard.Service.class);
+        for (RemoteCallGuard.Service service : RemoteCallGuard.Service.values()) {
+            final Long seconds = builder.remoteTimeouts.get(service);
+            timeouts.put(service, seconds == null || seconds <= 0 ? service.getDefaultTimeoutSeconds() : seconds);
+        }
+        this.remoteTimeouts = Collections.unmodifiableMap(timeouts);
+    }
+
+    /**
+     * @return  a copy of this snapshot with the specified version.
+     */
+    ConfigurationSnapshot withVersion(long version) {
+        return new ConfigurationSnapshot(new Builder(this), version);
+    }
+
+    /**
+     * @return  a builder initialized with the settings of this snapshot.
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getRunAsUser() {
+        return runAsUser;
+    }
+
+    public Set<String> getEnabledProjects() {
+        return enabledProjects;
+    }
+
+    /**
+     * @return  the enabled project keys, in the order they were stored.
+     */
+    public List<String> getEnabledProjectList() {
+        return enabledProjectList;
+    }
+
+    public Set<String> getCrucibleUserNames() {
+        return crucibleUserNames;
+    }
+
+    public Set<String> getCrucibleGroups() {
+        return crucibleGroups;
+    }
+
+    public CreateMode getCreateMode() {
+        return createMode;
+    }
+
+    public boolean isIterative() {
+        return iterative;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return  the maximum number of commits of a single repository waiting
+     * to be processed.
+     */
+    public int getLaneCapacity() {
+        return laneCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    public long getApproveDelay() {
+        return approveDelay;
+    }
+
+    public int getApproveRetries() {
+        return approveRetries;
+    }
+
+    /**
+     * @return  the number of minutes a cached group membership is used
+     * before it is re-evaluated.
+     */
+    public long getGroupCacheTtl() {
+        return groupCacheTtl;
+    }
+
+    /**
+     * @return  the holiday calendar lines, as parsed by
+     * {@link HolidayCalendars}.
+     */
+    public List<String> getHolidays() {
+        return holidays;
+    }
+
+    /**
+     * @return  the branch rule lines, as parsed by {@link BranchRules}.
+     */
+    public List<String> getBranchRules() {
+        return branchRules;
+    }
+
+    /**
+     * @return  the number of minutes after which the lag between a commit
+     * and its review is flagged.
+     */
+    public long getLagSlo() {
+        return lagSlo;
+    }
+
+    /**
+     * @return  the number of seconds to wait for a call to each remote
+     * service. Holds every service.
+     */
+    public Map<RemoteCallGuard.Service, Long> getRemoteTimeouts() {
+        return remoteTimeouts;
+    }
+
+    public long getRemoteTimeout(RemoteCallGuard.Service service) {
+        return remoteTimeouts.get(service);
+    }
+
+    public static class Builder {
+
+        private String runAsUser;
+        private Collection<String> enabledProjects = Collections.emptyList();
+        private Collection<String> crucibleUserNames = Collections.emptyList();
+        private Collection<String> crucibleGroups = Collections.emptyList();
+        private CreateMode createMode = CreateMode.ALWAYS;
+        private boolean iterative;
+        private int workerThreads;
+        private int queueCapacity;
+        private int laneCapacity;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        private long coalesceWindow;
+        private long approveDelay;
+        private int approveRetries;
+        private long groupCacheTtl;
+        private Collection<String> holidays = Collections.emptyList();
+        private Collection<String> branchRules = BranchRules.DEFAULT_RULES;
+        private long lagSlo;
+        private Map<RemoteCallGuard.Service, Long> remoteTimeouts = Collections.emptyMap();
+
+        public Builder() {
+        }
+
+        public Builder(ConfigurationSnapshot snapshot) {
+            this.runAsUser = snapshot.runAsUser;
+            this.enabledProjects = snapshot.enabledProjects;
+            this.crucibleUserNames = snapshot.crucibleUserNames;
+            this.crucibleGroups = snapshot.crucibleGroups;
+            this.createMode = snapshot.createMode;
+            this.iterative = snapshot.iterative;
+            this.workerThreads = snapshot.workerThreads;
+            this.queueCapacity = snapshot.queueCapacity;
+            this.laneCapacity = snapshot.laneCapacity;
+            this.overflowPolicy = snapshot.overflowPolicy;
+            this.coalesceWindow = snapshot.coalesceWindow;
+            this.approveDelay = snapshot.approveDelay;
+            this.approveRetries = snapshot.approveRetries;
+            this.groupCacheTtl = snapshot.groupCacheTtl;
+            this.holidays = snapshot.holidays;
+            this.branchRules = snapshot.branchRules;
+            this.lagSlo = snapshot.lagSlo;
+            this.remoteTimeouts = snapshot.remoteTimeouts;
+        }
+
+        public Builder setRunAsUser(String runAsUser) {
+            this.runAsUser = runAsUser;
+            return this;
+        }
+
+        public Builder setEnabledProjects(Collection<String> enabledProjects) {
+            this.enabledProjects = enabledProjects;
+            return this;
+        }
+
+        public Builder setCrucibleUserNames(Collection<String> crucibleUserNames) {
+            this.crucibleUserNames = crucibleUserNames;
+            return this;
+        }
+
+        public Builder setCrucibleGroups(Collection<String> crucibleGroups) {
+            this.crucibleGroups = crucibleGroups;
+            return this;
+        }
+
+        public Builder setCreateMode(CreateMode createMode) {
+            this.createMode = createMode;
+            return this;
+        }
+
+        public Builder setIterative(boolean iterative) {
+            this.iterative = iterative;
+            return this;
+        }
+
+        public Builder setWorkerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        public Builder setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder setLaneCapacity(int laneCapacity) {
+            this.laneCapacity = laneCapacity;
+            return this;
+        }
+
+        public Builder setOverflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder setCoalesceWindow(long coalesceWindow) {
+            this.coalesceWindow = coalesceWindow;
+            return this;
+        }
+
+        public Builder setApproveDelay(long approveDelay) {
+            this.approveDelay = approveDelay;
+            return this;
+        }
+
+        public Builder setApproveRetries(int approveRetries) {
+            this.approveRetries = approveRetries;
+            return this;
+        }
+
+        public Builder setGroupCacheTtl(long groupCacheTtl) {
+            this.groupCacheTtl = groupCacheTtl;
+            return this;
+        }
+
+        public Builder setHolidays(Collection<String> holidays) {
+            this.holidays = holidays;
+            return this;
+        }
+
+        public Builder setBranchRules(Collection<String> branchRules) {
+            this.branchRules = branchRules;
+            return this;
+        }
+
+        public Builder setLagSlo(long lagSlo) {
+            this.lagSlo = lagSlo;
+            return this;
+        }
+
+        /**
+         * @param remoteTimeouts    seconds by service; missing services
+         *  keep their default timeout.
+         */
+        public Builder setRemoteTimeouts(Map<RemoteCallGuard.Service, Long> remoteTimeouts) {
+            this.remoteTimeouts = remoteTimeouts;
+            return this;
+        }
+
+        /**
+         * @return  a new snapshot. Its version is assigned when it is stored
+         * through {@link ConfigurationManager#storeSnapshot}.
+         */
+        public ConfigurationSnapshot build() {
+            return new ConfigurationSnapshot(this, 0);
+        }
+    }
+}
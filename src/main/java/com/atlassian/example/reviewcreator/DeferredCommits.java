@@ -0,0 +1,133 @@
+package com.atlassian.example.reviewcreator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Holds the commits that could not be processed because a remote service
+ * was unavailable, and queues them again once it recovers.
+ * </p>
+ * <p>
+ * Every {@link #CHECK_INTERVAL_SECONDS} seconds, the commits deferred on a
+ * service whose {@link CircuitBreaker} is closed are all queued again. While
+ * the breaker is half open, only one is, so that it serves as the trial
+ * call rather than a flood of commits hitting a service that may still be
+ * down. Deferred commits stay outstanding in the {@link CommitJournal}, so
+ * they are replayed after a restart as well.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class DeferredCommits implements DisposableBean {
+
+    static final long CHECK_INTERVAL_SECONDS = 5;
+
+    private final Logger logger = LoggerFactory.getLogger(DeferredCommits.class);
+
+    private final RemoteCallGuard guard;
+    private final CommitWorkQueue workQueue;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Deferred commits by the service they wait for, in the order they were
+     * deferred, keyed on {@link CommitWork#toString()}. Guarded by the lock
+     * on this instance.
+     */
+    private final Map<RemoteCallGuard.Service, Map<String, CommitWork>> deferred =
+            new EnumMap<RemoteCallGuard.Service, Map<String, CommitWork>>(RemoteCallGuard.Service.class);
+    private long resubmitted;
+
+    public DeferredCommits(RemoteCallGuard guard, CommitWorkQueue workQueue) {
+
+        this.guard = guard;
+        this.workQueue = workQueue;
+        for (RemoteCallGuard.Service service : RemoteCallGuard.Service.values()) {
+            deferred.put(service, new LinkedHashMap<String, CommitWork>());
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("deferred-commits"));
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                resubmit();
+            }
+        }, CHECK_INTERVAL_SECONDS, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Holds the commit until the service recovers. Deferring a commit that is
+     * deferred already has no effect.
+     */
+    public synchronized void defer(CommitWork work, RemoteCallGuard.Service service) {
+        deferred.get(service).put(work.toString(), work);
+    }
+
+    /**
+     * @return  the number of commits waiting for the service.
+     */
+    public synchronized int getDeferredCount(RemoteCallGuard.Service service) {
+        return deferred.get(service).size();
+    }
+
+    public synchronized int getDeferredCount() {
+        int count = 0;
+        for (Map<String, CommitWork> commits : deferred.values()) {
+            count += commits.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return  the number of deferred commits that were queued again.
+     */
+    public synchronized long getResubmittedCount() {
+        return resubmitted;
+    }
+
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Queues the commits of the services that recovered again. Invoked
+     * periodically on the scheduler's thread.
+     */
+    void resubmit() {
+
+        final List<CommitWork> ready = new ArrayList<CommitWork>();
+        synchronized (this) {
+            for (Map.Entry<RemoteCallGuard.Service, Map<String, CommitWork>> entry : deferred.entrySet()) {
+                final CircuitBreaker.State state = guard.getState(entry.getKey());
+                if (state == CircuitBreaker.State.OPEN) {
+                    continue;
+                }
+                for (Iterator<CommitWork> i = entry.getValue().values().iterator(); i.hasNext(); ) {
+                    ready.add(i.next());
+                    i.remove();
+                    if (state == CircuitBreaker.State.HALF_OPEN) {
+                        break;
+                    }
+                }
+            }
+            resubmitted += ready.size();
+        }
+
+        if (!ready.isEmpty()) {
+            logger.info(String.format("Queueing %d deferred commits again.", ready.size()));
+        }
+        // outside the lock, as submitting may block when the queue is full:
+        for (CommitWork work : ready) {
+            workQueue.submit(work);
+        }
+    }
+}
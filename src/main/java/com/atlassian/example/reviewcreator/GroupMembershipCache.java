@@ -0,0 +1,158 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.sal.api.user.UserManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Caches whether users are a member of any of the configured exemption
+ * groups, so that deciding whether a commit is under scrutiny does not
+ * query the (possibly LDAP-backed) directory once per group per commit.
+ * </p>
+ * <p>
+ * SAL cannot list the members of a group, so the cache is filled per user
+ * on first lookup. A background task re-evaluates all cached users once
+ * their entries are older than the configured TTL, so commits from known
+ * users never wait for the directory. Entries computed for a different set
+ * of groups are discarded. The {@link #getGeneration() generation} changes
+ * whenever a cached membership changes, which lets callers memoize decisions
+ * derived from it.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class GroupMembershipCache implements DisposableBean {
+
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+
+    private final Logger logger = LoggerFactory.getLogger(GroupMembershipCache.class);
+
+    private final UserManager userManager;
+    private final ConfigurationManager config;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, Membership> memberships = new ConcurrentHashMap<String, Membership>();
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile long lastExpansion;
+
+    public GroupMembershipCache(ConfigurationManager config, UserManager userManager) {
+        this.config = config;
+        this.userManager = userManager;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("group-membership"));
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                expand(false);
+            }
+        }, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param username  a Crucible username.
+     * @return  <code>true</code> if the user is a member of at least one of
+     * the configured groups.
+     */
+    public boolean isInAnyGroup(String username) {
+
+        final ConfigurationSnapshot settings = config.loadSnapshot();
+        final Membership cached = memberships.get(username);
+        if (cached != null && cached.groups.equals(settings.getCrucibleGroups())) {
+            return cached.member;
+        }
+        final Membership membership = lookup(username, settings.getCrucibleGroups());
+        memberships.put(username, membership);
+        return membership.member;
+    }
+
+    /**
+     * @return  a number that changes whenever a cached membership changes or
+     * the cache is cleared.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Re-evaluates all cached memberships in the background, regardless of
+     * their age.
+     */
+    public void refreshAsync() {
+        scheduler.execute(new Runnable() {
+            public void run() {
+                expand(true);
+            }
+        });
+    }
+
+    public int getCachedUsers() {
+        return memberships.size();
+    }
+
+    /**
+     * @return  when the cached memberships were last re-evaluated, or
+     * <code>null</code> if they never were.
+     */
+    public Date getLastExpansion() {
+        return lastExpansion == 0 ? null : new Date(lastExpansion);
+    }
+
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    private void expand(boolean force) {
+
+        final ConfigurationSnapshot settings = config.loadSnapshot();
+        final long maxAge = TimeUnit.MINUTES.toMillis(settings.getGroupCacheTtl());
+        boolean changed = false;
+        try {
+            for (Map.Entry<String, Membership> entry : memberships.entrySet()) {
+                final Membership cached = entry.getValue();
+                if (force || !cached.groups.equals(settings.getCrucibleGroups()) ||
+                        System.currentTimeMillis() - cached.created > maxAge) {
+                    final Membership fresh = lookup(entry.getKey(), settings.getCrucibleGroups());
+                    memberships.put(entry.getKey(), fresh);
+                    changed |= fresh.member != cached.member;
+                }
+            }
+            lastExpansion = System.currentTimeMillis();
+        } catch (RuntimeException e) {
+            logger.warn("Unable to refresh group memberships: " + e.getMessage(), e);
+        }
+        if (changed || force) {
+            generation.incrementAndGet();
+        }
+    }
+
+    private Membership lookup(String username, Set<String> groups) {
+        for (String group : groups) {
+            if (userManager.isUserInGroup(username, group)) {
+                return new Membership(groups, true);
+            }
+        }
+        return new Membership(groups, false);
+    }
+
+    private static class Membership {
+
+        private final long created = System.currentTimeMillis();
+        private final Set<String> groups;
+        private final boolean member;
+
+        Membership(Set<String> groups, boolean member) {
+            this.groups = groups;
+            this.member = member;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.atlassian.example.reviewcreator;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Provides the {@link WorkingDayCalendar} of each project, built from the
+ * configured holidays.
+ * </p>
+ * <p>
+ * Holidays are configured one line per calendar: a project key and a colon,
+ * followed by dates in yyyy-MM-dd format separated by commas or whitespace.
+ * A line without a project key lists holidays for all projects. For example:
+ * </p>
+ * <pre>
+ * 2026-12-25, 2026-12-26, 2027-01-01
+ * CR: 2026-11-26
+ * </pre>
+ * <p>
+ * Calendars precompute the year before the current one to
+ * {@link #YEARS_AHEAD} years after it. They are built on first use and
+ * rebuilt when the configuration changes or the years run out.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class HolidayCalendars {
+
+    static final int YEARS_AHEAD = 10;
+
+    private final Logger logger = LoggerFactory.getLogger(HolidayCalendars.class);
+
+    private final ConfigurationManager config;
+
+    private volatile Calendars calendars;
+
+    public HolidayCalendars(ConfigurationManager config) {
+        this.config = config;
+    }
+
+    /**
+     * @return  the calendar of the specified project, which includes the
+     * holidays configured for all projects.
+     */
+    public WorkingDayCalendar getCalendar(String projectKey) {
+
+        final ConfigurationSnapshot settings = config.loadSnapshot();
+        Calendars current = calendars;
+        if (current == null || current.version != settings.getVersion() ||
+                System.currentTimeMillis() > current.expires) {
+            current = new Calendars(settings);
+            calendars = current;
+        }
+
+        WorkingDayCalendar calendar = current.byProject.get(projectKey);
+        if (calendar == null) {
+            calendar = current.build(projectKey);
+            final WorkingDayCalendar existing = current.byProject.putIfAbsent(projectKey, calendar);
+            calendar = existing == null ? calendar : existing;
+        }
+        return calendar;
+    }
+
+    /**
+     * @return  the configured holidays as epoch days by project key, with the
+     * holidays of all projects under the empty key. Malformed dates are
+     * logged and ignored.
+     */
+    Map<String, List<Integer>> parse(Collection<String> lines) {
+
+        final Map<String, List<Integer>> holidays = new HashMap<String, List<Integer>>();
+        for (String line : lines) {
+            final int colon = line.indexOf(':');
+            final String projectKey = colon < 0 ? "" : line.substring(0, colon).trim();
+            List<Integer> days = holidays.get(projectKey);
+            if (days == null) {
+                days = new ArrayList<Integer>();
+                holidays.put(projectKey, days);
+            }
+            final String[] dates = StringUtils.split(line.substring(colon + 1), ", \t");
+            for (String date : dates == null ? new String[0] : dates) {
+                final Integer day = parseDate(date);
+                if (day == null) {
+                    logger.warn(String.format("Ignoring holiday \"%s\" of %s, expected yyyy-MM-dd.",
+                            date, projectKey.length() == 0 ? "all projects" : projectKey));
+                } else {
+                    days.add(day);
+                }
+            }
+        }
+        return holidays;
+    }
+
+    private static Integer parseDate(String date) {
+        final String[] fields = StringUtils.split(date, '-');
+        if (fields == null || fields.length != 3) {
+            return null;
+        }
+        try {
+            final int year = Integer.parseInt(fields[0]);
+            final int month = Integer.parseInt(fields[1]);
+            final int dayOfMonth = Integer.parseInt(fields[2]);
+            if (month < 1 || month > 12 || dayOfMonth < 1 || dayOfMonth > 31) {
+                return null;
+            }
+            final long day = WorkingDayCalendar.epochDay(year, month, dayOfMonth);
+            // reject days past the end of the month, such as 2026-02-30:
+            if (day >= WorkingDayCalendar.epochDay(month == 12 ? year + 1 : year, month % 12 + 1, 1)) {
+                return null;
+            }
+            return (int) day;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The calendars built from one version of the configuration.
+     */
+    private class Calendars {
+
+        private final long version;
+        private final TimeZone timeZone = TimeZone.getDefault();
+        private final int firstYear;
+        private final long expires;
+        private final Map<String, List<Integer>> holidays;
+        private final ConcurrentMap<String, WorkingDayCalendar> byProject =
+                new ConcurrentHashMap<String, WorkingDayCalendar>();
+
+        Calendars(ConfigurationSnapshot settings) {
+            version = settings.getVersion();
+            holidays = parse(settings.getHolidays());
+            final int year = WorkingDayCalendar.yearOf(
+                    WorkingDayCalendar.epochDay(System.currentTimeMillis(), timeZone));
+            firstYear = year - 1;
+            // rebuild before the precomputed years run out:
+            expires = WorkingDayCalendar.epochDay(year + YEARS_AHEAD - 1, 1, 1) * WorkingDayCalendar.DAY_MILLIS;
+        }
+
+        WorkingDayCalendar build(String projectKey) {
+            final List<Integer> days = new ArrayList<Integer>();
+            if (holidays.containsKey("")) {
+                days.addAll(holidays.get(""));
+            }
+            if (holidays.containsKey(projectKey)) {
+                days.addAll(holidays.get(projectKey));
+            }
+            final int[] array = new int[days.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = days.get(i);
+            }
+            return new WorkingDayCalendar(timeZone, array, firstYear, firstYear + YEARS_AHEAD + 1);
+        }
+    }
+}
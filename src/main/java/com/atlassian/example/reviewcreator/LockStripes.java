@@ -0,0 +1,42 @@
+package com.atlassian.example.reviewcreator;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of locks that keys are hashed onto, so that work on the same
+ * key can be serialized without keeping a lock for every key ever seen.
+ * Unrelated keys only contend when they happen to share a stripe.
+ *
+ * @since   v1.8
+ */
+public class LockStripes {
+
+    private final Lock[] locks;
+
+    /**
+     * @param stripes   the number of locks, rounded up to a power of two.
+     */
+    public LockStripes(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        locks = new Lock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @return  the lock for the specified key; always the same one for equal
+     * keys.
+     */
+    public Lock get(String key) {
+        int hash = key.hashCode();
+        // spread the high bits, as String hashes of similar keys differ mostly in the low ones:
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return locks[hash & (locks.length - 1)];
+    }
+}
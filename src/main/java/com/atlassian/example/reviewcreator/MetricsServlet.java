@@ -0,0 +1,34 @@
+package com.atlassian.example.reviewcreator;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Serves the {@link PipelineMetrics} as JSON, for monitoring tools and for
+ * drilling down into what the admin page summarizes.
+ *
+ * @since   v1.8
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private final PipelineMetrics metrics;
+
+    public MetricsServlet(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        final Writer out = response.getWriter();
+        metrics.writeJson(out);
+        out.flush();
+    }
+}
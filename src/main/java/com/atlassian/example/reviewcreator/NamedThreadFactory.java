@@ -0,0 +1,26 @@
+package com.atlassian.example.reviewcreator;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so the plugin's background workers are easy
+ * to spot in a thread dump and never keep FishEye from shutting down.
+ *
+ * @since   v1.8
+ */
+class NamedThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    NamedThreadFactory(String name) {
+        this.prefix = "reviewcreator-" + name + "-";
+    }
+
+    public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
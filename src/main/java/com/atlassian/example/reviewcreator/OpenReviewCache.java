@@ -0,0 +1,102 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.crucible.spi.PermId;
+import com.atlassian.crucible.spi.data.ReviewData;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Remembers the open review of each branch for iterative mode, keyed by
+ * project and the JIRA key derived from the branch name. This saves a review
+ * search for every commit on a busy branch.
+ * </p>
+ * <p>
+ * Branches without an open review are cached too, but only for
+ * {@link #NEGATIVE_TTL_MILLIS} ms, so a review created by hand is picked up
+ * quickly. Open reviews are cached for {@link #POSITIVE_TTL_MILLIS} ms; an
+ * entry should be invalidated as soon as appending to its review fails, as
+ * that is the first sign that the review has been closed.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class OpenReviewCache {
+
+    static final long POSITIVE_TTL_MILLIS = 30 * 60 * 1000L;
+    static final long NEGATIVE_TTL_MILLIS = 30 * 1000L;
+    static final int MAX_ENTRIES = 10000;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @return  the cached entry, or <code>null</code> when nothing (or only
+     * an expired entry) is cached for the branch.
+     */
+    public Entry get(String projectKey, String jiraKey) {
+        final String key = key(projectKey, jiraKey);
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                entries.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    public void putOpen(String projectKey, String jiraKey, PermId<ReviewData> permaId) {
+        put(projectKey, jiraKey, new Entry(permaId, POSITIVE_TTL_MILLIS));
+    }
+
+    public void putNone(String projectKey, String jiraKey) {
+        put(projectKey, jiraKey, new Entry(null, NEGATIVE_TTL_MILLIS));
+    }
+
+    public void invalidate(String projectKey, String jiraKey) {
+        synchronized (entries) {
+            entries.remove(key(projectKey, jiraKey));
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void put(String projectKey, String jiraKey, Entry entry) {
+        synchronized (entries) {
+            entries.put(key(projectKey, jiraKey), entry);
+        }
+    }
+
+    private static String key(String projectKey, String jiraKey) {
+        return projectKey + "\u0000" + jiraKey;
+    }
+
+    public static class Entry {
+
+        private final PermId<ReviewData> permaId;
+        private final long expires;
+
+        Entry(PermId<ReviewData> permaId, long ttl) {
+            this.permaId = permaId;
+            this.expires = System.currentTimeMillis() + ttl;
+        }
+
+        /**
+         * @return  the id of the branch's open review, or <code>null</code>
+         * if the branch is known to have no open review.
+         */
+        public PermId<ReviewData> getPermaId() {
+            return permaId;
+        }
+    }
+}
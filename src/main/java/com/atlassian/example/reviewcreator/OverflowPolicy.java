@@ -0,0 +1,29 @@
+package com.atlassian.example.reviewcreator;
+
+/**
+ * What to do with a commit when the work queue, or the queue of the commit's
+ * repository, is full.
+ *
+ * @since   v1.8
+ * @see     CommitWorkQueue
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Hold up the FishEye event thread until there is room in the queue.
+     */
+    BLOCK,
+
+    /**
+     * Discard the oldest queued commit to make room for the new one: the
+     * oldest of the same repository if its queue is full, or else the oldest
+     * of the repository with the most queued commits.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Write the commit to a spill file in the plugin's data directory and
+     * queue it again once the backlog has drained.
+     */
+    SPILL
+}
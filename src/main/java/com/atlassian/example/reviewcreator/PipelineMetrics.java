@@ -0,0 +1,354 @@
+package com.atlassian.example.reviewcreator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Latency histograms for each remote call made while turning a commit into a
+ * review, and counters of what happened to each commit, per project and
+ * reason.
+ * </p>
+ * <p>
+ * Timing a stage costs two calls to {@link System#nanoTime()} and a few
+ * atomic increments:
+ * </p>
+ * <pre>
+ * final long start = metrics.start();
+ * boolean success = false;
+ * try {
+ *     ...
+ *     success = true;
+ * } finally {
+ *     metrics.record(Stage.GET_CHANGESET, start, success);
+ * }
+ * </pre>
+ * <p>
+ * All figures are kept in memory since the plugin was enabled. The lag
+ * between commits and their reviews is tracked separately, over the last
+ * hour and day, by a {@link ReviewLagTracker}.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class PipelineMetrics {
+
+    /**
+     * The timed stages, named after the call they make.
+     */
+    public enum Stage {
+        GET_CHANGESET("getChangeset"),
+        COMMITTER_MAPPINGS("loadCommitterMappings"),
+        SCRUTINY("isUnderScrutiny"),
+        GET_REVIEW("getReview"),
+        SEARCH_REVIEWS("searchForReviewsByJiraKey"),
+        APPEND_TO_REVIEW("addChangesetsToReview"),
+        CREATE_REVIEW("createReviewFromChangeSets"),
+        ADD_REVIEWERS("addReviewers"),
+        ADD_COMMENT("addComment"),
+        /**
+         * Adding reviewers and the comment to a new review, which run
+         * concurrently.
+         */
+        DECORATE_REVIEW("decorateReview"),
+        APPROVE("changeState"),
+        /**
+         * Waiting for another thread to finish with the same branch. Only
+         * recorded when the branch lock was contended.
+         */
+        BRANCH_LOCK("waitForBranchLock");
+
+        private final String displayName;
+
+        Stage(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /**
+     * What eventually happened to a commit.
+     */
+    public enum Outcome {
+        CREATED,
+        APPENDED,
+        SKIPPED,
+        FAILED,
+        /**
+         * Put aside until an unavailable remote service recovers, after which
+         * the commits are counted again.
+         */
+        DEFERRED
+    }
+
+    static final String NO_PROJECT = "(none)";
+
+    private final Date since = new Date();
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+    private final Map<Stage, AtomicLong> failures = new EnumMap<Stage, AtomicLong>(Stage.class);
+    private final Map<Outcome, AtomicLong> outcomes = new EnumMap<Outcome, AtomicLong>(Outcome.class);
+    private final ConcurrentMap<OutcomeKey, AtomicLong> outcomesByProject = new ConcurrentHashMap<OutcomeKey, AtomicLong>();
+    private final ReviewLagTracker reviewLag = new ReviewLagTracker();
+
+    public PipelineMetrics() {
+        // fully populated up front, so the maps are only ever read afterwards:
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+            failures.put(stage, new AtomicLong());
+        }
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, new AtomicLong());
+        }
+    }
+
+    /**
+     * @return  the start time of a stage, to be passed to
+     * {@link #record(Stage, long, boolean)}.
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void record(Stage stage, long start, boolean success) {
+        histograms.get(stage).record((System.nanoTime() - start) / 1000);
+        if (!success) {
+            failures.get(stage).incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts commits with the specified outcome.
+     *
+     * @param projectKey    the commits' project, or <code>null</code> if
+     *  the project could not be determined.
+     * @param reason    a short, fixed description of why the commits ended
+     *  up this way, e.g. "not-under-scrutiny".
+     */
+    public void count(String projectKey, Outcome outcome, String reason, int commits) {
+
+        outcomes.get(outcome).addAndGet(commits);
+
+        final OutcomeKey key = new OutcomeKey(projectKey == null ? NO_PROJECT : projectKey, outcome, reason);
+        AtomicLong counter = outcomesByProject.get(key);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = outcomesByProject.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.addAndGet(commits);
+    }
+
+    /**
+     * Records that a changeset committed at the specified time was just
+     * added to a review.
+     */
+    public void recordReviewLag(String projectKey, Date committed) {
+        if (committed != null) {
+            reviewLag.record(projectKey, committed.getTime(), System.currentTimeMillis());
+        }
+    }
+
+    public ReviewLagTracker getReviewLag() {
+        return reviewLag;
+    }
+
+    public Date getSince() {
+        return since;
+    }
+
+    public List<Stage> getStages() {
+        return Arrays.asList(Stage.values());
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms.get(stage);
+    }
+
+    public long getFailures(Stage stage) {
+        return failures.get(stage).get();
+    }
+
+    public List<Outcome> getOutcomes() {
+        return Arrays.asList(Outcome.values());
+    }
+
+    public long getTotal(Outcome outcome) {
+        return outcomes.get(outcome).get();
+    }
+
+    /**
+     * @return  the number of commits by project, outcome and reason, sorted.
+     */
+    public SortedMap<String, SortedMap<Outcome, SortedMap<String, Long>>> getOutcomesByProject() {
+
+        final SortedMap<String, SortedMap<Outcome, SortedMap<String, Long>>> result =
+                new TreeMap<String, SortedMap<Outcome, SortedMap<String, Long>>>();
+        for (Map.Entry<OutcomeKey, AtomicLong> entry : outcomesByProject.entrySet()) {
+            final OutcomeKey key = entry.getKey();
+            SortedMap<Outcome, SortedMap<String, Long>> byOutcome = result.get(key.projectKey);
+            if (byOutcome == null) {
+                byOutcome = new TreeMap<Outcome, SortedMap<String, Long>>();
+                result.put(key.projectKey, byOutcome);
+            }
+            SortedMap<String, Long> byReason = byOutcome.get(key.outcome);
+            if (byReason == null) {
+                byReason = new TreeMap<String, Long>();
+                byOutcome.put(key.outcome, byReason);
+            }
+            byReason.put(key.reason, entry.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * Writes all figures as a JSON object. Latencies are in microseconds.
+     */
+    public void writeJson(Writer out) throws IOException {
+
+        out.write("{\"since\":");
+        out.write(Long.toString(since.getTime()));
+
+        out.write(",\"stages\":{");
+        boolean first = true;
+        for (Stage stage : Stage.values()) {
+            final LatencyHistogram histogram = histograms.get(stage);
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeString(out, stage.getDisplayName());
+            out.write(String.format(":{\"count\":%d,\"failures\":%d,\"mean\":%d,\"p50\":%d,\"p95\":%d,\"p99\":%d,\"max\":%d}",
+                    histogram.getCount(), getFailures(stage), histogram.getMean(), histogram.getPercentile(50),
+                    histogram.getPercentile(95), histogram.getPercentile(99), histogram.getMax()));
+        }
+
+        out.write("},\"outcomes\":{");
+        first = true;
+        for (Outcome outcome : Outcome.values()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeString(out, outcome.name());
+            out.write(':');
+            out.write(Long.toString(getTotal(outcome)));
+        }
+
+        out.write("},\"projects\":{");
+        first = true;
+        for (Map.Entry<String, SortedMap<Outcome, SortedMap<String, Long>>> project : getOutcomesByProject().entrySet()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeString(out, project.getKey());
+            out.write(":{");
+            boolean firstOutcome = true;
+            for (Map.Entry<Outcome, SortedMap<String, Long>> outcome : project.getValue().entrySet()) {
+                if (!firstOutcome) {
+                    out.write(',');
+                }
+                firstOutcome = false;
+                writeString(out, outcome.getKey().name());
+                out.write(":{");
+                boolean firstReason = true;
+                for (Map.Entry<String, Long> reason : outcome.getValue().entrySet()) {
+                    if (!firstReason) {
+                        out.write(',');
+                    }
+                    firstReason = false;
+                    writeString(out, reason.getKey());
+                    out.write(':');
+                    out.write(Long.toString(reason.getValue()));
+                }
+                out.write('}');
+            }
+            out.write('}');
+        }
+
+        out.write("},\"reviewLag\":{");
+        first = true;
+        for (ReviewLagTracker.Summary summary : reviewLag.getSummaries()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeString(out, summary.getProjectKey());
+            out.write(":{\"hour\":");
+            writeWindow(out, summary.getHour());
+            out.write(",\"day\":");
+            writeWindow(out, summary.getDay());
+            out.write('}');
+        }
+        out.write("}}");
+    }
+
+    /**
+     * Lags are in seconds.
+     */
+    private static void writeWindow(Writer out, ReviewLagTracker.Window window) throws IOException {
+        out.write(String.format("{\"count\":%d,\"p50\":%d,\"p95\":%d,\"p99\":%d}",
+                window.getCount(), window.getP50(), window.getP95(), window.getP99()));
+    }
+
+    private static void writeString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    private static class OutcomeKey {
+
+        private final String projectKey;
+        private final Outcome outcome;
+        private final String reason;
+
+        OutcomeKey(String projectKey, Outcome outcome, String reason) {
+            this.projectKey = projectKey;
+            this.outcome = outcome;
+            this.reason = reason;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof OutcomeKey)) {
+                return false;
+            }
+            final OutcomeKey other = (OutcomeKey) o;
+            return projectKey.equals(other.projectKey) && outcome == other.outcome && reason.equals(other.reason);
+        }
+
+        @Override
+        public int hashCode() {
+            return (projectKey.hashCode() * 31 + outcome.hashCode()) * 31 + reason.hashCode();
+        }
+    }
+}
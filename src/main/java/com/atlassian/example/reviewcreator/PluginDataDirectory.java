@@ -0,0 +1,35 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.sal.api.ApplicationProperties;
+
+import java.io.File;
+
+/**
+ * Locates the directory in the application's home where this plugin keeps
+ * its local files.
+ *
+ * @since   v1.8
+ */
+public class PluginDataDirectory {
+
+    private final File directory;
+
+    public PluginDataDirectory(ApplicationProperties applicationProperties) {
+        this(new File(new File(applicationProperties.getHomeDirectory(), "data"), "reviewcreator"));
+    }
+
+    PluginDataDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param name  the name of a file in the plugin's data directory.
+     * @return  the file, after making sure its parent directory exists.
+     */
+    public File getFile(String name) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Unable to create plugin data directory " + directory);
+        }
+        return new File(directory, name);
+    }
+}
@@ -0,0 +1,267 @@
+package com.atlassian.example.reviewcreator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Remembers which changesets have been added to a review, so that the
+ * commit events FishEye emits again after a reindex or repository rescan
+ * are discarded before any remote call is made.
+ * </p>
+ * <p>
+ * Changesets are identified by a 64-bit fingerprint of their repository and
+ * csid. All fingerprints are kept in a sorted file in the plugin's data
+ * directory, which is memory-mapped for binary search. In memory there are
+ * only a Bloom filter over all fingerprints, an exact LRU of the most recently
+ * seen ones, and the fingerprints added since the file was last rewritten.
+ * The Bloom filter answers most lookups for new changesets on its own; its
+ * false positives are confirmed against the exact fingerprints. Two
+ * changesets with the same fingerprint cannot be told apart, so a new
+ * changeset is mistaken for a processed one with a probability of about
+ * n / 2<sup>64</sup> for n indexed changesets.
+ * </p>
+ * <p>
+ * New fingerprints are merged into the file every
+ * {@link #MERGE_THRESHOLD} changesets and when the plugin stops. After a
+ * crash, the changesets since the last merge may be processed again.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class ProcessedChangesetIndex implements DisposableBean {
+
+    static final int MERGE_THRESHOLD = 10000;
+    static final int RECENT_ENTRIES = 10000;
+
+    private static final String INDEX_FILE = "processed-changesets.bin";
+    private static final String MERGE_FILE = "processed-changesets.tmp";
+    private static final int BLOOM_BITS = 1 << 24;     // 2 MB, 0.1% false positives at a million changesets
+    private static final int BLOOM_HASHES = 7;
+
+    private final Logger logger = LoggerFactory.getLogger(ProcessedChangesetIndex.class);
+
+    private final PluginDataDirectory dataDirectory;
+
+    private final long[] bloom = new long[BLOOM_BITS / 64];
+    private final Map<Long, Boolean> recent = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > RECENT_ENTRIES;
+        }
+    };
+    private final TreeSet<Long> unmerged = new TreeSet<Long>();
+    private LongBuffer merged = LongBuffer.allocate(0);
+
+    private final AtomicLong duplicates = new AtomicLong();
+
+    public ProcessedChangesetIndex(PluginDataDirectory dataDirectory) {
+        this.dataDirectory = dataDirectory;
+        load();
+    }
+
+    /**
+     * @return  {@code true} if the changeset was marked processed before.
+     */
+    public boolean isProcessed(String repositoryName, String changesetId) {
+
+        final long fingerprint = fingerprint(repositoryName, changesetId);
+        if (!mightContain(fingerprint)) {
+            return false;
+        }
+        synchronized (this) {
+            final Long key = fingerprint;
+            if (recent.get(key) != null || unmerged.contains(key) || binarySearch(merged, fingerprint)) {
+                recent.put(key, Boolean.TRUE);
+                duplicates.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public synchronized void markProcessed(String repositoryName, String changesetId) {
+
+        final long fingerprint = fingerprint(repositoryName, changesetId);
+        final Long key = fingerprint;
+        if (recent.put(key, Boolean.TRUE) != null) {
+            return;
+        }
+        if (mightContain(fingerprint) && (unmerged.contains(key) || binarySearch(merged, fingerprint))) {
+            return;
+        }
+        add(fingerprint);
+        unmerged.add(key);
+        if (unmerged.size() >= MERGE_THRESHOLD) {
+            merge();
+        }
+    }
+
+    /**
+     * @return  the number of lookups that found an already processed
+     * changeset.
+     */
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    public synchronized int getSize() {
+        return merged.capacity() + unmerged.size();
+    }
+
+    public synchronized void destroy() {
+        if (!unmerged.isEmpty()) {
+            merge();
+        }
+    }
+
+    /**
+     * FNV-1a over the repository name, a tab and the csid.
+     */
+    static long fingerprint(String repositoryName, String changesetId) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, repositoryName);
+        hash = (hash ^ '\t') * 0x100000001b3L;
+        return fnv(hash, changesetId);
+    }
+
+    private static long fnv(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void add(long fingerprint) {
+        synchronized (bloom) {
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                final int bit = bloomBit(fingerprint, i);
+                bloom[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    private boolean mightContain(long fingerprint) {
+        synchronized (bloom) {
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                final int bit = bloomBit(fingerprint, i);
+                if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Double hashing on the two halves of the fingerprint.
+     */
+    private static int bloomBit(long fingerprint, int i) {
+        final int h1 = (int) fingerprint;
+        final int h2 = (int) (fingerprint >>> 32) | 1;
+        return (h1 + i * h2) & (BLOOM_BITS - 1);
+    }
+
+    private static boolean binarySearch(LongBuffer sorted, long fingerprint) {
+        int low = 0;
+        int high = sorted.capacity() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long value = sorted.get(mid);
+            if (value < fingerprint) {
+                low = mid + 1;
+            } else if (value > fingerprint) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void load() {
+        final File file = dataDirectory.getFile(INDEX_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            merged = map(file);
+            for (int i = 0; i < merged.capacity(); i++) {
+                add(merged.get(i));
+            }
+            logger.info(String.format("Loaded %d processed changesets.", merged.capacity()));
+        } catch (IOException e) {
+            logger.error("Unable to read the processed changesets, duplicate commits may be processed again: " +
+                    e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Rewrites the index file with the new fingerprints merged in. Must be
+     * called while holding the lock on this instance.
+     */
+    private void merge() {
+
+        final File file = dataDirectory.getFile(INDEX_FILE);
+        final File tmp = dataDirectory.getFile(MERGE_FILE);
+        try {
+            final FileOutputStream fileOut = new FileOutputStream(tmp);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+            try {
+                int i = 0;
+                for (Long next : unmerged) {
+                    while (i < merged.capacity() && merged.get(i) < next) {
+                        out.writeLong(merged.get(i++));
+                    }
+                    if (i < merged.capacity() && merged.get(i) == next) {
+                        i++;
+                    }
+                    out.writeLong(next);
+                }
+                while (i < merged.capacity()) {
+                    out.writeLong(merged.get(i++));
+                }
+                out.flush();
+                fileOut.getChannel().force(false);
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Unable to replace " + file + " with " + tmp);
+            }
+            merged = map(file);
+            unmerged.clear();
+        } catch (IOException e) {
+            logger.error("Unable to save the processed changesets: " + e.getMessage(), e);
+        }
+    }
+
+    private static LongBuffer map(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long entries = raf.length() / 8;
+            if (entries == 0) {
+                return LongBuffer.wrap(new long[0]);
+            }
+            // the mapping stays valid after the file is closed:
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, entries * 8).asLongBuffer();
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.crucible.spi.data.ProjectData;
+import com.atlassian.crucible.spi.services.ImpersonationService;
+import com.atlassian.crucible.spi.services.Operation;
+import com.atlassian.crucible.spi.services.ProjectService;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * Cached index of FishEye repository keys to the Crucible projects that have
+ * the repository configured as their default and are enabled for automatic
+ * review creation.
+ * </p>
+ * <p>
+ * Most repositories are typically not enabled, so this lets the
+ * {@link CommitListener} discard their commits before making any FishEye or
+ * Crucible call. The index is rebuilt when the configuration version changes
+ * and at least every {@link #MAX_AGE_MILLIS} ms, to pick up changes made to
+ * the projects themselves.
+ * </p>
+ * <p>
+ * A stale index is rebuilt on a background thread while callers keep using
+ * it, so that the FishEye event thread never waits for Crucible. When there
+ * is no index yet, {@link #isRepositoryEnabled(String)} schedules the build
+ * and accepts every repository, leaving it to the commit's lane to look up
+ * its project. The other lookups wait for the index to be built.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class ProjectIndex implements DisposableBean {
+
+    static final long MAX_AGE_MILLIS = 5 * 60 * 1000L;
+
+    private final Logger logger = LoggerFactory.getLogger(ProjectIndex.class);
+
+    private final ProjectService projectService;
+    private final ImpersonationService impersonator;
+    private final ConfigurationManager config;
+
+    private final Object buildLock = new Object();
+    private final ExecutorService executor;
+    private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+    private volatile Snapshot snapshot;
+
+    public ProjectIndex(ConfigurationManager config,
+            ProjectService projectService,
+            ImpersonationService impersonator) {
+
+        this.config = config;
+        this.projectService = projectService;
+        this.impersonator = impersonator;
+        this.executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("project-index"));
+    }
+
+    /**
+     * Never waits for the index to be built, as it is invoked on the FishEye
+     * event thread.
+     *
+     * @param repoKey   a FishEye repository key (e.g. "CR").
+     * @return  <code>true</code> if at least one enabled project has the
+     * specified repository configured as its default repo, or the index has
+     * not been built yet.
+     */
+    public boolean isRepositoryEnabled(String repoKey) {
+        final Snapshot current = snapshot;
+        if (current == null) {
+            scheduleRebuild();
+            return true;
+        }
+        if (current.isStale(config.loadSnapshot())) {
+            scheduleRebuild();
+        }
+        return current.byRepository.containsKey(repoKey);
+    }
+
+    /**
+     * <p>
+     * Given a FishEye repository key, returns the Crucible project that has
+     * this repository configured as its default.
+     * </p>
+     * <p>
+     * When no project is bound to the specified repository, or not enabled
+     * for automatic review creation, <code>null</code> is returned.
+     * </p>
+     *
+     * TODO: What to do when there are multiple projects?
+     *
+     * @param repoKey   a FishEye repository key (e.g. "CR").
+     * @return  the Crucible project that has the specified repository
+     *  configured as its default repo and has been enabled for automatic
+     *  review creation.
+     */
+    public ProjectData getEnabledProject(String repoKey) {
+        final List<ProjectData> projects = getSnapshot().byRepository.get(repoKey);
+        return projects == null ? null : projects.get(0);
+    }
+
+    /**
+     * @return  all projects that are enabled and have a default repository.
+     */
+    public List<ProjectData> getEnabledProjects() {
+        final List<ProjectData> projects = new ArrayList<ProjectData>();
+        for (List<ProjectData> bound : getSnapshot().byRepository.values()) {
+            projects.addAll(bound);
+        }
+        return projects;
+    }
+
+    /**
+     * Rebuilds the index on the calling thread if it is stale, rather than
+     * in the background.
+     */
+    public void refresh() {
+        rebuildIfStale(config.loadSnapshot());
+    }
+
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private Snapshot getSnapshot() {
+
+        final ConfigurationSnapshot settings = config.loadSnapshot();
+        final Snapshot current = snapshot;
+        if (current == null) {
+            return rebuildIfStale(settings);
+        }
+        if (current.isStale(settings)) {
+            scheduleRebuild();
+        }
+        return current;
+    }
+
+    private Snapshot rebuildIfStale(ConfigurationSnapshot settings) {
+        synchronized (buildLock) {
+            Snapshot current = snapshot;
+            if (current == null || current.isStale(settings)) {
+                current = build(settings);
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Rebuilds the index on the background thread, unless a rebuild is
+     * scheduled already.
+     */
+    private void scheduleRebuild() {
+        if (!rebuildScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    rebuildScheduled.set(false);
+                    try {
+                        refresh();
+                    } catch (RuntimeException e) {
+                        logger.warn("Unable to rebuild the project index, keeping the previous one: " + e.getMessage(), e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            rebuildScheduled.set(false);
+        }
+    }
+
+    /**
+     * Builds the index as the plugin's run-as user, so that all projects are
+     * visible.
+     */
+    private Snapshot build(ConfigurationSnapshot settings) {
+
+        final String runAsUser = settings.getRunAsUser();
+        if (StringUtils.isEmpty(runAsUser)) {
+            return new Snapshot(settings.getVersion(), Collections.<String, List<ProjectData>>emptyMap());
+        }
+        final Set<String> enabled = settings.getEnabledProjects();
+        final List<ProjectData> projects = impersonator.doAsUser(null, runAsUser, new Operation<List<ProjectData>, RuntimeException>() {
+            public List<ProjectData> perform() throws RuntimeException {
+                return projectService.getAllProjects();
+            }
+        });
+
+        final Map<String, List<ProjectData>> byRepository = new HashMap<String, List<ProjectData>>();
+        for (ProjectData project : projects) {
+            if (project.getDefaultRepositoryName() != null && enabled.contains(project.getKey())) {
+                List<ProjectData> bound = byRepository.get(project.getDefaultRepositoryName());
+                if (bound == null) {
+                    bound = new ArrayList<ProjectData>();
+                    byRepository.put(project.getDefaultRepositoryName(), bound);
+                }
+                bound.add(project);
+            }
+        }
+        logger.debug(String.format("Indexed %d enabled repositories of %d projects.", byRepository.size(), projects.size()));
+        return new Snapshot(settings.getVersion(), byRepository);
+    }
+
+    private static class Snapshot {
+
+        private final long created = System.currentTimeMillis();
+        private final long configVersion;
+        private final Map<String, List<ProjectData>> byRepository;
+
+        Snapshot(long configVersion, Map<String, List<ProjectData>> byRepository) {
+            this.configVersion = configVersion;
+            this.byRepository = byRepository;
+        }
+
+        boolean isStale(ConfigurationSnapshot settings) {
+            return configVersion != settings.getVersion() ||
+                    System.currentTimeMillis() - created > MAX_AGE_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.crucible.spi.services.ImpersonationService;
+import com.atlassian.crucible.spi.services.Operation;
+import com.atlassian.crucible.spi.services.ServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Protects the threads that process commits from slow or failing Crucible
+ * and FishEye services.
+ * </p>
+ * <p>
+ * Each call is made on a thread of its service's own bounded pool,
+ * impersonating the specified user, and the caller waits for it no longer
+ * than the service's configured timeout. An idempotent call is retried
+ * after a failure, up to {@link #MAX_ATTEMPTS} times in all, with a
+ * randomized, exponentially growing delay, so that callers that failed
+ * together do not retry together. Every service has a {@link CircuitBreaker}
+ * that rejects calls while the service keeps failing.
+ * </p>
+ * <p>
+ * Timeouts and {@link ServerException}s count as failures of the service
+ * and are retried; runtime exceptions, such as a review not being found,
+ * mean the service answered and are thrown right away. A call fails with a
+ * {@link ServiceUnavailableException} when it timed out, when the service's
+ * breaker rejected it or opened because of it, or when all of the service's
+ * threads are busy. A call that timed out keeps running in the background
+ * and may still take effect, so when a call that is not idempotent times
+ * out, the exception is not {@link ServiceUnavailableException#isDeferrable()
+ * deferrable}: repeating the work could, for instance, create a second review
+ * for a branch.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class RemoteCallGuard implements DisposableBean {
+
+    /**
+     * The guarded services, each with its own timeout, threads and breaker.
+     */
+    public enum Service {
+        REVISIONS("FishEye revisions", 30),
+        REVIEWS("Crucible reviews", 60),
+        SEARCH("Crucible review search", 30),
+        USERS("Crucible users", 30),
+        /**
+         * Walking the entire user directory, as building the committer index
+         * does. Commits are deferred on it while the index is being built in
+         * the background.
+         */
+        USER_DIRECTORY("Crucible user directory", 600);
+
+        private final String displayName;
+        private final long defaultTimeoutSeconds;
+
+        Service(String displayName, long defaultTimeoutSeconds) {
+            this.displayName = displayName;
+            this.defaultTimeoutSeconds = defaultTimeoutSeconds;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * @return  the timeout used until one is configured.
+         */
+        public long getDefaultTimeoutSeconds() {
+            return defaultTimeoutSeconds;
+        }
+    }
+
+    static final int MAX_ATTEMPTS = 3;
+    static final long BASE_BACKOFF_MILLIS = 200;
+    static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final int MAX_CONCURRENT_CALLS = 32;
+
+    private final Logger logger = LoggerFactory.getLogger(RemoteCallGuard.class);
+
+    private final ConfigurationManager config;
+    private final ImpersonationService impersonator;
+    private final Map<Service, CircuitBreaker> breakers = new EnumMap<Service, CircuitBreaker>(Service.class);
+    private final Map<Service, ThreadPoolExecutor> executors = new EnumMap<Service, ThreadPoolExecutor>(Service.class);
+    private final Map<Service, AtomicLong> timeouts = new EnumMap<Service, AtomicLong>(Service.class);
+    private final Map<Service, AtomicLong> retries = new EnumMap<Service, AtomicLong>(Service.class);
+    private final Random random = new Random();
+
+    public RemoteCallGuard(ConfigurationManager config, ImpersonationService impersonator) {
+
+        this.config = config;
+        this.impersonator = impersonator;
+        // fully populated up front, so the maps are only ever read afterwards:
+        for (Service service : Service.values()) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONCURRENT_CALLS, MAX_CONCURRENT_CALLS,
+                    60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new NamedThreadFactory("remote-" + service.name().toLowerCase()));
+            executor.allowCoreThreadTimeOut(true);
+            executors.put(service, executor);
+            breakers.put(service, new CircuitBreaker());
+            timeouts.put(service, new AtomicLong());
+            retries.put(service, new AtomicLong());
+        }
+    }
+
+    /**
+     * Performs the operation as the specified user, guarded as described
+     * above, and waits for its result.
+     *
+     * @param idempotent    {@code true} if performing the operation more than
+     *  once has the same effect as performing it once, e.g. because it only
+     *  reads. Only idempotent operations are retried.
+     * @throws ServiceUnavailableException  if the service did not answer in
+     *  time or is considered unhealthy.
+     */
+    public <T> T call(Service service, String username, boolean idempotent,
+                      Operation<T, ServerException> operation) throws ServerException {
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return attempt(service, username, idempotent, operation);
+            } catch (ServiceUnavailableException e) {
+                if (!idempotent || attempt >= MAX_ATTEMPTS || !isCallable(service) || !backOff(service, attempt)) {
+                    throw e;
+                }
+            } catch (ServerException e) {
+                if (!idempotent || attempt >= MAX_ATTEMPTS || !isCallable(service) || !backOff(service, attempt)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return  {@code true} unless the service's breaker is open and would
+     * reject a call.
+     */
+    public boolean isCallable(Service service) {
+        return breakers.get(service).getState(System.currentTimeMillis()) != CircuitBreaker.State.OPEN;
+    }
+
+    public List<Service> getServices() {
+        return Arrays.asList(Service.values());
+    }
+
+    public CircuitBreaker getBreaker(Service service) {
+        return breakers.get(service);
+    }
+
+    /**
+     * @return  the state of the service's breaker, as shown on the admin
+     * page.
+     */
+    public CircuitBreaker.State getState(Service service) {
+        return breakers.get(service).getState(System.currentTimeMillis());
+    }
+
+    /**
+     * @return  how long callers wait for a call to the service.
+     */
+    public long getTimeoutMillis(Service service) {
+        return config.loadSnapshot().getRemoteTimeout(service) * 1000;
+    }
+
+    public long getTimeouts(Service service) {
+        return timeouts.get(service).get();
+    }
+
+    public long getRetries(Service service) {
+        return retries.get(service).get();
+    }
+
+    /**
+     * @return  the number of the service's calls that are currently running,
+     * including ones whose callers stopped waiting for them.
+     */
+    public int getActiveCalls(Service service) {
+        return executors.get(service).getActiveCount();
+    }
+
+    public void destroy() {
+        for (ThreadPoolExecutor executor : executors.values()) {
+            executor.shutdownNow();
+        }
+    }
+
+    private <T> T attempt(final Service service, final String username, boolean idempotent,
+                          final Operation<T, ServerException> operation) throws ServerException {
+
+        final CircuitBreaker breaker = breakers.get(service);
+        if (!breaker.allowRequest(System.currentTimeMillis())) {
+            throw new ServiceUnavailableException(service, "is unavailable, not calling it until it recovers.");
+        }
+
+        final Future<T> future;
+        try {
+            future = executors.get(service).submit(new Callable<T>() {
+                public T call() throws ServerException {
+                    return impersonator.doAsUser(null, username, operation);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // saturated or shutting down; not the service's fault:
+            breaker.release();
+            throw new ServiceUnavailableException(service, "has too many calls in progress.", e);
+        }
+
+        final long timeoutMillis = getTimeoutMillis(service);
+        try {
+            final T result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            breaker.recordSuccess();
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timeouts.get(service).incrementAndGet();
+            breaker.recordFailure(System.currentTimeMillis());
+            // the call may still complete:
+            throw new ServiceUnavailableException(service,
+                    String.format("did not answer within %d ms.", timeoutMillis), e, idempotent);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            breaker.release();
+            throw new ServiceUnavailableException(service, "call was interrupted.", e, idempotent);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ServerException) {
+                breaker.recordFailure(System.currentTimeMillis());
+                if (!isCallable(service)) {
+                    logger.warn(String.format("%s failed %d times in a row, not calling it for a while: %s",
+                            service.getDisplayName(), breaker.getConsecutiveFailures(), cause.getMessage()));
+                    throw new ServiceUnavailableException(service, "is failing: " + cause.getMessage(), cause);
+                }
+                throw (ServerException) cause;
+            }
+            // the service answered, e.g. that a review does not exist:
+            breaker.recordSuccess();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Sleeps for a random time up to an exponentially growing bound before
+     * the next attempt.
+     *
+     * @return  {@code false} if interrupted, in which case there should be
+     * no further attempts.
+     */
+    private boolean backOff(Service service, int attempt) {
+
+        final long bound = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (attempt - 1));
+        final long delay;
+        synchronized (random) {
+            delay = bound / 2 + (long) (random.nextDouble() * bound / 2);
+        }
+        retries.get(service).incrementAndGet();
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
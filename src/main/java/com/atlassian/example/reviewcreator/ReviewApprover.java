@@ -0,0 +1,220 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.crucible.spi.PermId;
+import com.atlassian.crucible.spi.data.ReviewData;
+import com.atlassian.crucible.spi.services.Operation;
+import com.atlassian.crucible.spi.services.ReviewService;
+import com.atlassian.crucible.spi.services.ServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Starts newly created reviews in the background, so that the thread that
+ * created the review does not have to wait for Crucible to be ready for the
+ * state transition.
+ * </p>
+ * <p>
+ * The transition is attempted after the configured delay, through the
+ * {@link RemoteCallGuard}. When it fails, it is retried with an exponentially
+ * growing delay until the configured number of retries is exhausted.
+ * Attempts run on a small pool, so that one review that Crucible is slow to
+ * start does not hold up the others.
+ * </p>
+ * <p>
+ * Reviews waiting to be started are saved in the plugin's data directory
+ * until their transition succeeds or is given up on, and are started when
+ * the plugin starts again, as their commits are not replayed.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class ReviewApprover implements DisposableBean {
+
+    private static final String PENDING_FILE = "pending-approvals.txt";
+    private static final int APPROVE_THREADS = 4;
+
+    private final Logger logger = LoggerFactory.getLogger(ReviewApprover.class);
+
+    private final ReviewService reviewService;
+    private final RemoteCallGuard guard;
+    private final ConfigurationManager config;
+    private final PipelineMetrics metrics;
+    private final PluginDataDirectory dataDirectory;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The users to start the pending reviews as, by review id, guarded by
+     * the lock on this instance.
+     */
+    private final Map<String, String> pending = new LinkedHashMap<String, String>();
+
+    public ReviewApprover(ConfigurationManager config,
+            ReviewService reviewService,
+            RemoteCallGuard guard,
+            PipelineMetrics metrics,
+            PluginDataDirectory dataDirectory) {
+
+        this.config = config;
+        this.reviewService = reviewService;
+        this.guard = guard;
+        this.metrics = metrics;
+        this.dataDirectory = dataDirectory;
+        this.scheduler = Executors.newScheduledThreadPool(APPROVE_THREADS, new NamedThreadFactory("approver"));
+
+        final Map<String, String> saved = load();
+        if (!saved.isEmpty()) {
+            logger.info(String.format("Starting %d reviews that were not started before the last shutdown.", saved.size()));
+        }
+        for (Map.Entry<String, String> review : saved.entrySet()) {
+            approve(new PermId<ReviewData>(review.getKey()), review.getValue());
+        }
+    }
+
+    /**
+     * Schedules the {@link ReviewService.Action#Approve} transition of the
+     * specified review and returns immediately.
+     *
+     * @param permaId   the review to start.
+     * @param username  the user to perform the transition as.
+     */
+    public void approve(PermId<ReviewData> permaId, String username) {
+        synchronized (this) {
+            pending.put(permaId.getId(), username);
+            save();
+        }
+        scheduler.schedule(new Attempt(permaId, username, 0),
+                Math.max(0, config.loadApproveDelay()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return  the number of reviews waiting to be started.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops without waiting for the pending reviews; they stay saved and are
+     * started on the next start.
+     */
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Forgets a review that was started or given up on.
+     */
+    private synchronized void done(PermId<ReviewData> permaId) {
+        if (pending.remove(permaId.getId()) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Rewrites the file of pending reviews. Must be called while holding
+     * the lock on this instance.
+     */
+    private void save() {
+        Writer writer = null;
+        try {
+            writer = new FileWriter(dataDirectory.getFile(PENDING_FILE), false);
+            for (Map.Entry<String, String> review : pending.entrySet()) {
+                writer.write(review.getKey() + "\t" + review.getValue() + "\n");
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to save the reviews waiting to be started: " + e.getMessage(), e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private Map<String, String> load() {
+        final Map<String, String> saved = new LinkedHashMap<String, String>();
+        final File file = dataDirectory.getFile(PENDING_FILE);
+        if (!file.exists()) {
+            return saved;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                final String[] fields = StringUtils.split(line, '\t');
+                if (fields != null && fields.length == 2) {
+                    saved.put(fields[0], fields[1]);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to read the reviews waiting to be started: " + e.getMessage(), e);
+        } finally {
+            closeQuietly(reader);
+        }
+        return saved;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private class Attempt implements Runnable {
+
+        private final PermId<ReviewData> permaId;
+        private final String username;
+        private final int attempt;
+
+        Attempt(PermId<ReviewData> permaId, String username, int attempt) {
+            this.permaId = permaId;
+            this.username = username;
+            this.attempt = attempt;
+        }
+
+        public void run() {
+            final long start = metrics.start();
+            boolean success = false;
+            try {
+                guard.call(RemoteCallGuard.Service.REVIEWS, username, false, new Operation<Void, ServerException>() {
+                    public Void perform() throws ServerException {
+                        reviewService.changeState(permaId, ReviewService.Action.Approve);
+                        return null;
+                    }
+                });
+                success = true;
+                done(permaId);
+            } catch (Exception e) {
+                if (attempt < config.loadApproveRetries()) {
+                    final long backoff = Math.max(1, config.loadApproveDelay()) << (attempt + 1);
+                    logger.warn(String.format("Unable to start review %s, retrying in %d ms: %s",
+                            permaId.getId(), backoff, e.getMessage()));
+                    scheduler.schedule(new Attempt(permaId, username, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+                } else {
+                    logger.error(String.format("Unable to start review %s after %d attempts: %s",
+                            permaId.getId(), attempt + 1, e.getMessage()), e);
+                    done(permaId);
+                }
+            } finally {
+                metrics.record(PipelineMetrics.Stage.APPROVE, start, success);
+            }
+        }
+    }
+}
@@ -0,0 +1,615 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.crucible.spi.services.ImpersonationService;
+import com.atlassian.crucible.spi.services.Operation;
+import com.atlassian.crucible.spi.services.ServerException;
+import com.atlassian.fisheye.spi.data.ChangesetDataFE;
+import com.atlassian.fisheye.spi.data.ChangesetQuery;
+import com.atlassian.fisheye.spi.services.RevisionDataService;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Runs the changesets that were committed to a repository in a past date or
+ * changeset range through review creation, e.g. after a project was enabled
+ * while its feature branches already had commits.
+ * </p>
+ * <p>
+ * The changesets are handed to the same {@link CommitWorkQueue.Processor} as
+ * live commits, oldest first, by a small pool of threads that is throttled to
+ * a maximum number of changesets per second. Like live commits, they are
+ * written to the {@link CommitJournal} first. Only one backfill runs at a
+ * time. Its progress is saved in the plugin's data directory, so that a
+ * cancelled backfill, or one that was interrupted by a restart, can be
+ * resumed where it left off.
+ * </p>
+ * <p>
+ * A changeset only counts as completed for resuming once the journal has it
+ * marked done, as the processor may merely have handed it to the
+ * {@link ChangesetCoalescer} or deferred it. Changesets that were still
+ * outstanding are replayed from the journal after a restart.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class ReviewBackfill implements DisposableBean {
+
+    public enum State {
+        LISTING,
+        RUNNING,
+        CANCELLED,
+        INTERRUPTED,
+        COMPLETED,
+        FAILED
+    }
+
+    private static final String STATE_FILE = "backfill.properties";
+    private static final String CHANGESETS_FILE = "backfill-changesets.txt";
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
+    private static final int SAVE_INTERVAL = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(ReviewBackfill.class);
+
+    private final ConfigurationManager config;
+    private final RevisionDataService revisionService;
+    private final ImpersonationService impersonator;
+    private final PluginDataDirectory dataDirectory;
+    private final CommitJournal journal;
+
+    private volatile CommitWorkQueue.Processor processor;
+    private volatile Job job;
+
+    public ReviewBackfill(ConfigurationManager config,
+            RevisionDataService revisionService,
+            ImpersonationService impersonator,
+            PluginDataDirectory dataDirectory,
+            CommitJournal journal) {
+
+        this.config = config;
+        this.revisionService = revisionService;
+        this.impersonator = impersonator;
+        this.dataDirectory = dataDirectory;
+        this.journal = journal;
+        this.job = load();
+    }
+
+    public void setProcessor(CommitWorkQueue.Processor processor) {
+        this.processor = processor;
+    }
+
+    /**
+     * @return  the current or most recent backfill, or <code>null</code>.
+     */
+    public Job getJob() {
+        return job;
+    }
+
+    /**
+     * Starts a new backfill, unless one is already running. Input errors are
+     * reported through the {@link Job#getError() job}.
+     *
+     * @param from  the first date ("yyyy-MM-dd") or the csid of the first
+     *  changeset to include; empty for the beginning of the repository.
+     * @param to    the last date or the csid of the last changeset to
+     *  include; empty for now.
+     * @param threads   the number of changesets to process in parallel.
+     * @param rate  the maximum number of changesets to process per second.
+     */
+    public synchronized void start(String repository, String from, String to, int threads, int rate) {
+
+        if (isActive()) {
+            logger.warn("Not starting a backfill of " + repository + ", another backfill is still running.");
+            return;
+        }
+
+        final Job next = new Job(StringUtils.trim(repository), StringUtils.trimToEmpty(from),
+                StringUtils.trimToEmpty(to), Math.max(1, threads), Math.max(1, rate));
+        job = next;
+        if (StringUtils.isEmpty(next.repository)) {
+            next.fail("No repository specified.");
+            return;
+        }
+        next.executor = Executors.newFixedThreadPool(next.threads, new NamedThreadFactory("backfill"));
+        next.executor.execute(new Runnable() {
+            public void run() {
+                list(next);
+            }
+        });
+    }
+
+    /**
+     * Stops the current backfill after the changesets that are being
+     * processed. It can be resumed later.
+     */
+    public synchronized void cancel() {
+        final Job current = job;
+        if (current != null && current.isActive()) {
+            current.state = State.CANCELLED;
+            current.executor.shutdown();
+            save(current);
+        }
+    }
+
+    /**
+     * Continues a cancelled or interrupted backfill with the first changeset
+     * that was not processed yet.
+     */
+    public synchronized void resume() {
+        final Job current = job;
+        if (current != null && current.isResumable() && current.workers.get() == 0) {
+            current.executor = Executors.newFixedThreadPool(current.threads, new NamedThreadFactory("backfill"));
+            run(current);
+        }
+    }
+
+    public void destroy() {
+        final Job current = job;
+        if (current != null && current.isActive()) {
+            current.state = State.INTERRUPTED;
+            current.executor.shutdownNow();
+            save(current);
+        }
+    }
+
+    private boolean isActive() {
+        final Job current = job;
+        return current != null && current.isActive();
+    }
+
+    private void list(final Job job) {
+        try {
+            final List<String> csids = impersonator.doAsUser(null, config.loadRunAsUser(),
+                    new Operation<List<String>, ServerException>() {
+                        public List<String> perform() throws ServerException {
+                            return listChangesets(job);
+                        }
+                    });
+            synchronized (this) {
+                if (job.state != State.LISTING) {
+                    return;
+                }
+                job.csids = csids;
+                job.completed = new BitSet(csids.size());
+                logger.info(String.format("Backfilling %d changesets of repository %s.", csids.size(), job.repository));
+                run(job);
+            }
+        } catch (Exception e) {
+            logger.error(String.format("Unable to list the changesets of repository %s: %s",
+                    job.repository, e.getMessage()), e);
+            job.fail(e.getMessage());
+            job.executor.shutdown();
+        }
+    }
+
+    /**
+     * Must be invoked with admin permissions.
+     *
+     * @return  the csids in the job's range, oldest first.
+     */
+    private List<String> listChangesets(Job job) throws ServerException {
+
+        final Date fromDate = toDate(job.repository, job.from, false);
+        final Date toDate = toDate(job.repository, job.to, true);
+
+        final ChangesetQuery.Builder query = new ChangesetQuery.Builder();
+        if (fromDate != null) {
+            query.fromDate(fromDate);
+        }
+        if (toDate != null) {
+            query.toDate(toDate);
+        }
+        final List<String> csids = new ArrayList<String>(revisionService.listChangesets(job.repository, query.build()));
+        // FishEye lists the most recent changeset first:
+        Collections.reverse(csids);
+        return csids;
+    }
+
+    /**
+     * @param end   whether the value marks the end of the range, in which
+     *  case a date covers the whole day.
+     * @return  the date of the specified date or csid, or <code>null</code>
+     * when the value is empty.
+     */
+    private Date toDate(String repository, String value, boolean end) throws ServerException {
+        if (StringUtils.isEmpty(value)) {
+            return null;
+        }
+        try {
+            final Date date = new SimpleDateFormat(DATE_FORMAT).parse(value);
+            if (!end) {
+                return date;
+            }
+            final Calendar cal = new GregorianCalendar();
+            cal.setTime(date);
+            cal.add(Calendar.DAY_OF_MONTH, 1);
+            cal.add(Calendar.MILLISECOND, -1);
+            return cal.getTime();
+        } catch (ParseException e) {
+            final ChangesetDataFE cs = revisionService.getChangeset(repository, value);
+            return cs.getDate();
+        }
+    }
+
+    /**
+     * Must be invoked while holding the lock on this instance.
+     */
+    private void run(final Job job) {
+
+        job.state = State.RUNNING;
+        job.cursor.set(job.completed.nextClearBit(0));
+        job.startedAt = System.currentTimeMillis();
+        job.processedAtStart = job.resetProcessed();
+        job.nextPermit = System.nanoTime();
+        job.workers.set(job.threads);
+        save(job);
+
+        for (int i = 0; i < job.threads; i++) {
+            job.executor.execute(new Runnable() {
+                public void run() {
+                    work(job);
+                }
+            });
+        }
+    }
+
+    private void work(Job job) {
+        try {
+            for (int i = job.cursor.getAndIncrement(); i < job.csids.size(); i = job.cursor.getAndIncrement()) {
+                if (job.isProcessed(i)) {
+                    // processed before the backfill was resumed:
+                    continue;
+                }
+                if (job.state != State.RUNNING || !job.throttle()) {
+                    return;
+                }
+                final CommitWorkQueue.Processor current = processor;
+                if (current == null) {
+                    logger.error("No processor registered, stopping the backfill of " + job.repository);
+                    job.fail("The plugin is not ready.");
+                    return;
+                }
+                final CommitWork work = new CommitWork(job.repository, job.csids.get(i));
+                journal.append(work);
+                current.process(work);
+                if (job.markProcessed(i, !journal.isOutstanding(work.getRepositoryName(), work.getChangesetId()))
+                        % SAVE_INTERVAL == 0) {
+                    save(job);
+                }
+            }
+        } finally {
+            if (job.workers.decrementAndGet() == 0) {
+                synchronized (this) {
+                    if (job.state == State.RUNNING) {
+                        job.state = State.COMPLETED;
+                        logger.info(String.format("Backfilled %d changesets of repository %s.",
+                                job.processed.get(), job.repository));
+                    }
+                    save(job);
+                    job.executor.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the job's progress. Changesets are only written once, as they
+     * never change.
+     */
+    private void save(Job job) {
+        synchronized (job) {
+            job.completeDone(journal);
+            final Properties properties = new Properties();
+            properties.setProperty("repository", job.repository);
+            properties.setProperty("from", job.from);
+            properties.setProperty("to", job.to);
+            properties.setProperty("threads", Integer.toString(job.threads));
+            properties.setProperty("rate", Integer.toString(job.rate));
+            properties.setProperty("state", job.state.name());
+            properties.setProperty("processed", Integer.toString(job.processed.get()));
+            if (job.error != null) {
+                properties.setProperty("error", job.error);
+            }
+            if (job.completed != null) {
+                properties.setProperty("completed", Integer.toString(job.completed.nextClearBit(0)));
+            }
+
+            OutputStream out = null;
+            Writer writer = null;
+            try {
+                if (job.csids != null && !job.csidsSaved) {
+                    writer = new FileWriter(dataDirectory.getFile(CHANGESETS_FILE), false);
+                    for (String csid : job.csids) {
+                        writer.write(csid + "\n");
+                    }
+                    job.csidsSaved = true;
+                }
+                out = new FileOutputStream(dataDirectory.getFile(STATE_FILE));
+                properties.store(out, "Review backfill progress");
+            } catch (IOException e) {
+                logger.warn("Unable to save the backfill progress: " + e.getMessage(), e);
+            } finally {
+                closeQuietly(writer);
+                closeQuietly(out);
+            }
+        }
+    }
+
+    /**
+     * @return  the job that was saved before the plugin was last stopped,
+     * or <code>null</code>.
+     */
+    private Job load() {
+
+        final File stateFile = dataDirectory.getFile(STATE_FILE);
+        if (!stateFile.exists()) {
+            return null;
+        }
+
+        InputStream in = null;
+        BufferedReader reader = null;
+        try {
+            final Properties properties = new Properties();
+            in = new FileInputStream(stateFile);
+            properties.load(in);
+
+            final Job saved = new Job(properties.getProperty("repository"),
+                    properties.getProperty("from", ""), properties.getProperty("to", ""),
+                    Integer.parseInt(properties.getProperty("threads", "1")),
+                    Integer.parseInt(properties.getProperty("rate", "1")));
+            saved.state = State.valueOf(properties.getProperty("state"));
+            saved.error = properties.getProperty("error");
+            saved.processed.set(Integer.parseInt(properties.getProperty("processed", "0")));
+
+            if (properties.getProperty("completed") != null) {
+                final List<String> csids = new ArrayList<String>();
+                reader = new BufferedReader(new FileReader(dataDirectory.getFile(CHANGESETS_FILE)));
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (line.length() > 0) {
+                        csids.add(line);
+                    }
+                }
+                saved.csids = csids;
+                saved.csidsSaved = true;
+                saved.completed = new BitSet(csids.size());
+                saved.completed.set(0, Math.min(csids.size(), Integer.parseInt(properties.getProperty("completed"))));
+            }
+
+            if (saved.state == State.LISTING || saved.state == State.RUNNING) {
+                // we were stopped without getting the chance to save that:
+                saved.state = saved.csids == null ? State.FAILED : State.INTERRUPTED;
+            }
+            return saved;
+        } catch (Exception e) {
+            logger.warn("Ignoring unreadable backfill progress: " + e.getMessage(), e);
+            return null;
+        } finally {
+            closeQuietly(reader);
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public static class Job {
+
+        private final String repository;
+        private final String from;
+        private final String to;
+        private final int threads;
+        private final int rate;
+
+        private volatile State state = State.LISTING;
+        private volatile String error;
+        private volatile List<String> csids;
+        private volatile BitSet completed;
+        /**
+         * Indexes of the changesets that were processed, but not yet done.
+         * Guarded by the lock on this instance.
+         */
+        private final BitSet pending = new BitSet();
+        private volatile boolean csidsSaved;
+        private volatile ExecutorService executor;
+        private volatile long startedAt;
+        private volatile int processedAtStart;
+
+        private final AtomicInteger cursor = new AtomicInteger();
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicInteger workers = new AtomicInteger();
+        private long nextPermit;
+
+        Job(String repository, String from, String to, int threads, int rate) {
+            this.repository = repository;
+            this.from = from;
+            this.to = to;
+            this.threads = threads;
+            this.rate = rate;
+        }
+
+        public String getRepository() {
+            return repository;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getTo() {
+            return to;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getRate() {
+            return rate;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean isActive() {
+            return state == State.LISTING || state == State.RUNNING;
+        }
+
+        public boolean isResumable() {
+            return (state == State.CANCELLED || state == State.INTERRUPTED) && csids != null;
+        }
+
+        /**
+         * @return  the number of changesets in the range, or -1 while they
+         * are being listed.
+         */
+        public int getTotal() {
+            final List<String> current = csids;
+            return current == null ? -1 : current.size();
+        }
+
+        public int getProcessed() {
+            return processed.get();
+        }
+
+        public int getPercentComplete() {
+            final int total = getTotal();
+            return total <= 0 ? 0 : (int) (100L * processed.get() / total);
+        }
+
+        /**
+         * @return  the number of changesets processed per second since the
+         * backfill was last (re)started.
+         */
+        public double getThroughput() {
+            final long elapsed = System.currentTimeMillis() - startedAt;
+            return elapsed <= 0 || startedAt == 0 ? 0 : (processed.get() - processedAtStart) * 1000.0 / elapsed;
+        }
+
+        /**
+         * @return  the estimated number of seconds until the backfill
+         * completes, or -1 if unknown.
+         */
+        public long getEtaSeconds() {
+            final double throughput = getThroughput();
+            final int total = getTotal();
+            return state != State.RUNNING || throughput <= 0 || total < 0 ?
+                    -1 : (long) Math.ceil((total - processed.get()) / throughput);
+        }
+
+        void fail(String message) {
+            error = message;
+            state = State.FAILED;
+        }
+
+        /**
+         * @param done  whether the changeset is done with, rather than
+         *  outstanding in the journal.
+         * @return  the number of changesets processed so far.
+         */
+        synchronized int markProcessed(int index, boolean done) {
+            if (done) {
+                completed.set(index);
+            } else {
+                pending.set(index);
+            }
+            return processed.incrementAndGet();
+        }
+
+        /**
+         * @return  whether the changeset was processed, or is done with,
+         * since the backfill started.
+         */
+        synchronized boolean isProcessed(int index) {
+            return completed.get(index) || pending.get(index);
+        }
+
+        /**
+         * Recounts the processed changesets before the backfill is resumed,
+         * as the saved count includes changesets that were outstanding when
+         * it was saved, and that are processed again after a restart.
+         *
+         * @return  the number of changesets processed so far.
+         */
+        synchronized int resetProcessed() {
+            processed.set(completed.cardinality() + pending.cardinality());
+            return processed.get();
+        }
+
+        /**
+         * Marks the pending changesets that the journal has marked done since
+         * as completed.
+         */
+        synchronized void completeDone(CommitJournal journal) {
+            for (int index = pending.nextSetBit(0); index >= 0; index = pending.nextSetBit(index + 1)) {
+                if (!journal.isOutstanding(repository, csids.get(index))) {
+                    completed.set(index);
+                    pending.clear(index);
+                }
+            }
+        }
+
+        /**
+         * Waits until the next changeset may be processed without exceeding
+         * the job's rate.
+         *
+         * @return  <code>false</code> if interrupted.
+         */
+        boolean throttle() {
+            final long permit;
+            synchronized (this) {
+                permit = Math.max(nextPermit, System.nanoTime());
+                nextPermit = permit + TimeUnit.SECONDS.toNanos(1) / rate;
+            }
+            final long wait = permit - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.atlassian.example.reviewcreator;
+
+import com.atlassian.crucible.spi.services.ImpersonationService;
+import com.atlassian.crucible.spi.services.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Runs the independent steps that follow the creation of a review, such as
+ * adding its reviewers and its commit message comment, concurrently rather
+ * than one remote call after another.
+ * </p>
+ * <p>
+ * The first step runs on the calling thread, the others on the decorator's
+ * threads, impersonating the same user. {@link #decorate} returns once all
+ * steps have completed, so the caller can start the review afterwards.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class ReviewDecorator implements DisposableBean {
+
+    private static final int THREADS = 8;
+
+    private final Logger logger = LoggerFactory.getLogger(ReviewDecorator.class);
+
+    private final ImpersonationService impersonator;
+    private final ThreadPoolExecutor executor;
+
+    public ReviewDecorator(ImpersonationService impersonator) {
+        this.impersonator = impersonator;
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("decorator"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the specified steps concurrently and waits for them to complete.
+     * Steps are expected to handle their own failures; anything they throw
+     * is logged.
+     * <p>
+     * Must be called within the context of the specified user.
+     * </p>
+     *
+     * @param username  the user to run the steps as.
+     */
+    public void decorate(final String username, Runnable... steps) {
+
+        final List<Future<?>> pending = new ArrayList<Future<?>>();
+        for (int i = 1; i < steps.length; i++) {
+            final Runnable step = steps[i];
+            try {
+                pending.add(executor.submit(new Runnable() {
+                    public void run() {
+                        impersonator.doAsUser(null, username, new Operation<Void, RuntimeException>() {
+                            public Void perform() throws RuntimeException {
+                                step.run();
+                                return null;
+                            }
+                        });
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                // shutting down, run it here:
+                run(step);
+            }
+        }
+        if (steps.length > 0) {
+            run(steps[0]);
+        }
+
+        for (Future<?> step : pending) {
+            try {
+                step.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while waiting for a new review to be decorated.");
+                return;
+            } catch (ExecutionException e) {
+                logger.error("Unable to decorate a new review: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    private void run(Runnable step) {
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            logger.error("Unable to decorate a new review: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.atlassian.example.reviewcreator;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ * Finds review ids of any of a set of projects in a commit message, e.g.
+ * "CR-12" and "CR-FE-3" in "Fixes CR-12 and CR-FE-3".
+ * </p>
+ * <p>
+ * Matches the same ids as {@link Utils#extractReviewIds(String, String)}
+ * would for each project key individually, but scans the message only once:
+ * for every dash followed by digits, the text before the dash is looked up
+ * in a hash set of project keys, once for every distinct key length. The cost
+ * is therefore independent of the number of projects. Instances are
+ * immutable and should be rebuilt only when the set of project keys changes.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class ReviewIdScanner {
+
+    private final Set<String> projectKeys;
+    private final int[] keyLengths;
+
+    public ReviewIdScanner(Collection<String> projectKeys) {
+
+        this.projectKeys = ImmutableSet.copyOf(projectKeys);
+
+        // try longer keys first, so that "CR-FE-1" is not mistaken for a CR review:
+        final Set<Integer> lengths = new TreeSet<Integer>(Collections.reverseOrder());
+        for (String key : this.projectKeys) {
+            if (!StringUtils.isEmpty(key)) {
+                lengths.add(key.length());
+            }
+        }
+        keyLengths = new int[lengths.size()];
+        int i = 0;
+        for (Integer length : lengths) {
+            keyLengths[i++] = length;
+        }
+    }
+
+    public Set<String> getProjectKeys() {
+        return projectKeys;
+    }
+
+    /**
+     * @param commitMsg a commit message, may be <code>null</code>.
+     * @return  the distinct review ids found in the message, in order of
+     * appearance.
+     */
+    public Set<String> scan(String commitMsg) {
+
+        if (StringUtils.isEmpty(commitMsg) || keyLengths.length == 0) {
+            return Collections.emptySet();
+        }
+
+        Set<String> ids = null;
+        for (int dash = commitMsg.indexOf('-'); dash >= 0; dash = commitMsg.indexOf('-', dash + 1)) {
+            int end = dash + 1;
+            while (end < commitMsg.length() && isDigit(commitMsg.charAt(end))) {
+                end++;
+            }
+            if (end == dash + 1) {
+                continue;
+            }
+            for (int length : keyLengths) {
+                if (length <= dash && projectKeys.contains(commitMsg.substring(dash - length, dash))) {
+                    if (ids == null) {
+                        ids = new LinkedHashSet<String>();
+                    }
+                    ids.add(commitMsg.substring(dash - length, end));
+                    break;
+                }
+            }
+        }
+        return ids == null ? Collections.<String>emptySet() : ids;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
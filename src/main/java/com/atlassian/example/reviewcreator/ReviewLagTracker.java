@@ -0,0 +1,189 @@
+package com.atlassian.example.reviewcreator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Tracks, per project, how long after being committed changesets ended up
+ * in a review, and reports percentiles of that lag over the last hour and
+ * the last day.
+ * </p>
+ * <p>
+ * Each project keeps its most recent {@link #SAMPLES_PER_PROJECT} samples in
+ * a fixed-size ring, so memory use does not grow with the commit rate; a
+ * project with more commits than that per day reports its day percentiles
+ * over the most recent ones only. Percentiles are computed when they are
+ * read. Lags are measured from the changeset's commit date, so they include
+ * the time before it was pushed. Changesets that were committed more than
+ * {@link #MAX_LAG_MILLIS} before their review, such as backfilled ones, are
+ * not counted.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class ReviewLagTracker {
+
+    static final int SAMPLES_PER_PROJECT = 2048;
+    static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+    static final long MAX_LAG_MILLIS = 7 * DAY_MILLIS;
+
+    private final ConcurrentMap<String, Ring> rings = new ConcurrentHashMap<String, Ring>();
+
+    /**
+     * @param committed when the changeset was committed.
+     * @param reviewed  when the changeset was added to a review.
+     */
+    public void record(String projectKey, long committed, long reviewed) {
+
+        final long lag = Math.max(0, reviewed - committed);
+        if (lag > MAX_LAG_MILLIS) {
+            return;
+        }
+        Ring ring = rings.get(projectKey);
+        if (ring == null) {
+            final Ring created = new Ring();
+            ring = rings.putIfAbsent(projectKey, created);
+            if (ring == null) {
+                ring = created;
+            }
+        }
+        ring.add(reviewed, lag);
+    }
+
+    /**
+     * @return  the lag percentiles of every project that had a review in the
+     * last day, sorted by project key.
+     */
+    public List<Summary> getSummaries() {
+
+        final long now = System.currentTimeMillis();
+        final List<Summary> summaries = new ArrayList<Summary>();
+        for (Map.Entry<String, Ring> entry : new TreeMap<String, Ring>(rings).entrySet()) {
+            final Summary summary = entry.getValue().summarize(entry.getKey(), now);
+            if (summary.getDay().getCount() > 0) {
+                summaries.add(summary);
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * The lag percentiles of one project.
+     */
+    public static class Summary {
+
+        private final String projectKey;
+        private final Window hour;
+        private final Window day;
+
+        Summary(String projectKey, Window hour, Window day) {
+            this.projectKey = projectKey;
+            this.hour = hour;
+            this.day = day;
+        }
+
+        public String getProjectKey() {
+            return projectKey;
+        }
+
+        public Window getHour() {
+            return hour;
+        }
+
+        public Window getDay() {
+            return day;
+        }
+    }
+
+    /**
+     * Lag percentiles over one period, in seconds.
+     */
+    public static class Window {
+
+        private final int count;
+        private final long p50;
+        private final long p95;
+        private final long p99;
+
+        Window(long[] sortedLags, int count) {
+            this.count = count;
+            this.p50 = percentile(sortedLags, count, 50) / 1000;
+            this.p95 = percentile(sortedLags, count, 95) / 1000;
+            this.p99 = percentile(sortedLags, count, 99) / 1000;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP95() {
+            return p95;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        /**
+         * Nearest-rank percentile of the first <code>count</code> values.
+         */
+        static long percentile(long[] sorted, int count, double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final int rank = (int) Math.ceil(percentile / 100 * count);
+            return sorted[Math.max(0, Math.min(count, rank) - 1)];
+        }
+    }
+
+    /**
+     * The most recent samples of one project.
+     */
+    private static class Ring {
+
+        private final long[] times = new long[SAMPLES_PER_PROJECT];
+        private final long[] lags = new long[SAMPLES_PER_PROJECT];
+        private int next;
+        private int size;
+
+        synchronized void add(long time, long lag) {
+            times[next] = time;
+            lags[next] = lag;
+            next = (next + 1) % SAMPLES_PER_PROJECT;
+            size = Math.min(size + 1, SAMPLES_PER_PROJECT);
+        }
+
+        Summary summarize(String projectKey, long now) {
+
+            final long[] hour = new long[SAMPLES_PER_PROJECT];
+            final long[] day = new long[SAMPLES_PER_PROJECT];
+            int hourCount = 0;
+            int dayCount = 0;
+            synchronized (this) {
+                for (int i = 0; i < size; i++) {
+                    final long age = now - times[i];
+                    if (age <= DAY_MILLIS) {
+                        day[dayCount++] = lags[i];
+                        if (age <= HOUR_MILLIS) {
+                            hour[hourCount++] = lags[i];
+                        }
+                    }
+                }
+            }
+            Arrays.sort(hour, 0, hourCount);
+            Arrays.sort(day, 0, dayCount);
+            return new Summary(projectKey, new Window(hour, hourCount), new Window(day, dayCount));
+        }
+    }
+}
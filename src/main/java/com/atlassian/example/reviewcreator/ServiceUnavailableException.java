@@ -0,0 +1,57 @@
+package com.atlassian.example.reviewcreator;
+
+/**
+ * Thrown by the {@link RemoteCallGuard} when a remote service did not answer
+ * in time, or is considered unhealthy and was not called at all. Commits
+ * that fail with it are deferred rather than given up on, unless the call
+ * may have taken effect after all.
+ *
+ * @since   v1.8
+ */
+public class ServiceUnavailableException extends RuntimeException {
+
+    private final RemoteCallGuard.Service service;
+    private final boolean deferrable;
+
+    public ServiceUnavailableException(RemoteCallGuard.Service service, String message) {
+        this(service, message, null, true);
+    }
+
+    public ServiceUnavailableException(RemoteCallGuard.Service service, String message, Throwable cause) {
+        this(service, message, cause, true);
+    }
+
+    public ServiceUnavailableException(RemoteCallGuard.Service service, String message, Throwable cause,
+                                       boolean deferrable) {
+        super(service.getDisplayName() + " " + message, cause);
+        this.service = service;
+        this.deferrable = deferrable;
+    }
+
+    public RemoteCallGuard.Service getService() {
+        return service;
+    }
+
+    /**
+     * @return  {@code false} if the call may still have taken effect, like
+     * a review creation that timed out, in which case the work that made it
+     * must not be repeated.
+     */
+    public boolean isDeferrable() {
+        return deferrable;
+    }
+
+    /**
+     * @return  the first {@link ServiceUnavailableException} in the cause
+     * chain of the specified exception, or <code>null</code> if there is
+     * none.
+     */
+    public static ServiceUnavailableException find(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ServiceUnavailableException) {
+                return (ServiceUnavailableException) cause;
+            }
+        }
+        return null;
+    }
+}
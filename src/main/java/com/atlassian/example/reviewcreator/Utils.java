@@ -5,11 +5,15 @@ import org.apache.commons.lang.StringUtils;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Utils {
 
+    private static final ConcurrentMap<String, Pattern> reviewIdPatterns = new ConcurrentHashMap<String, Pattern>();
+
     public static <T> T defaultIfNull(T object, T defaultObject) {
         return object == null ? defaultObject : object;
     }
@@ -31,7 +35,8 @@ public class Utils {
 
     /**
      * Returns a distinct set of review ids, extracted from the specified commit
-     * message.
+     * message. To look for the ids of several projects at once, use a
+     * {@link ReviewIdScanner}.
      *
      * @since   v1.4.1
      * @param commitMsg
@@ -46,7 +51,12 @@ public class Utils {
         } else {
             final Set<String> ids = new HashSet<String>();
 
-            final Matcher matcher = Pattern.compile("(" + projectKey + "-\\d+)").matcher(commitMsg);
+            Pattern pattern = reviewIdPatterns.get(projectKey);
+            if (pattern == null) {
+                pattern = Pattern.compile("(" + projectKey + "-\\d+)");
+                reviewIdPatterns.putIfAbsent(projectKey, pattern);
+            }
+            final Matcher matcher = pattern.matcher(commitMsg);
             matcher.useTransparentBounds(true);
             matcher.useAnchoringBounds(false);
 
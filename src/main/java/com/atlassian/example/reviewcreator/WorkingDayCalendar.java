@@ -0,0 +1,181 @@
+package com.atlassian.example.reviewcreator;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * <p>
+ * Immutable calendar of working days: Monday to Friday, except for a set of
+ * holidays.
+ * </p>
+ * <p>
+ * Days are counted as epoch days (days since 1970-01-01) in the calendar's
+ * time zone. For a range of years, the working days are precomputed as a
+ * bitset, with the number of working days before every 64-day word and the
+ * epoch day of every working day in the range. Finding the Nth working day
+ * after a day in that range is then a rank and a select, both constant time
+ * and without allocation. Dates outside the range are counted day by day.
+ * </p>
+ * <p>
+ * Adding working days keeps the local time of day, also when the period
+ * spans a Daylight Savings change.
+ * </p>
+ *
+ * @since   v1.8
+ */
+public class WorkingDayCalendar {
+
+    static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final TimeZone timeZone;
+    private final int[] holidays;
+
+    private final int firstDay;
+    private final int days;
+    private final long[] workingDayBits;
+    private final int[] rankAtWord;
+    private final int[] workingDayAt;
+
+    /**
+     * @param holidays  epoch days that are not working days, in any order.
+     * @param firstYear the first year to precompute.
+     * @param lastYear  the last year to precompute.
+     */
+    public WorkingDayCalendar(TimeZone timeZone, int[] holidays, int firstYear, int lastYear) {
+
+        this.timeZone = timeZone;
+        this.holidays = holidays.clone();
+        Arrays.sort(this.holidays);
+
+        firstDay = (int) epochDay(firstYear, 1, 1);
+        days = (int) epochDay(lastYear + 1, 1, 1) - firstDay;
+        workingDayBits = new long[(days + 63) >>> 6];
+        rankAtWord = new int[workingDayBits.length];
+
+        int count = 0;
+        for (int i = 0; i < days; i++) {
+            if (isWorkingDay(firstDay + i)) {
+                workingDayBits[i >>> 6] |= 1L << i;
+                count++;
+            }
+        }
+        workingDayAt = new int[count];
+        count = 0;
+        for (int word = 0; word < workingDayBits.length; word++) {
+            rankAtWord[word] = count;
+            for (long bits = workingDayBits[word]; bits != 0; bits &= bits - 1) {
+                workingDayAt[count++] = firstDay + (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+    }
+
+    /**
+     * Takes a start date and adds the specified number of working days to it.
+     * E.g. when <code>start</code> is Friday and <code>workingDays</code> is
+     * 2, the returned date will be the Tuesday following <code>start</code>,
+     * at the same local time. When <code>start</code> is not a working day,
+     * counting starts at the next working day.
+     */
+    public Date addWorkingDays(Date start, int workingDays) {
+        return new Date(addWorkingDays(start.getTime(), workingDays));
+    }
+
+    /**
+     * @see #addWorkingDays(Date, int)
+     */
+    public long addWorkingDays(long start, int workingDays) {
+
+        if (workingDays < 0) {
+            throw new IllegalArgumentException("Subtracting of working days is currently not supported.");
+        } else if (workingDays == 0) {
+            return start;
+        }
+
+        final long local = start + timeZone.getOffset(start);
+        final long day = floorDiv(local, DAY_MILLIS);
+        final long targetLocal = nthWorkingDayAfter(day, workingDays) * DAY_MILLIS + (local - day * DAY_MILLIS);
+
+        // the offset at the target may differ from the offset at the start:
+        final long guess = targetLocal - timeZone.getOffset(targetLocal);
+        return targetLocal - timeZone.getOffset(guess);
+    }
+
+    /**
+     * @return  the epoch day of the <code>n</code>th working day after
+     * <code>day</code>.
+     */
+    public long nthWorkingDayAfter(long day, int n) {
+
+        final long offset = day + 1 - firstDay;
+        if (offset >= 0 && offset < days) {
+            final int index = (int) offset;
+            final int word = index >>> 6;
+            final int rank = rankAtWord[word] + Long.bitCount(workingDayBits[word] & ((1L << index) - 1));
+            if (rank + n - 1 < workingDayAt.length) {
+                return workingDayAt[rank + n - 1];
+            }
+        }
+
+        long result = day;
+        for (int remaining = n; remaining > 0; ) {
+            result++;
+            if (isWorkingDay(result)) {
+                remaining--;
+            }
+        }
+        return result;
+    }
+
+    public boolean isWorkingDay(long day) {
+        // 1970-01-01 was a Thursday, so 0 is Monday:
+        final long dayOfWeek = floorMod(day + 3, 7);
+        return dayOfWeek < 5 && (day < Integer.MIN_VALUE || day > Integer.MAX_VALUE ||
+                Arrays.binarySearch(holidays, (int) day) < 0);
+    }
+
+    /**
+     * @return  the number of days between 1970-01-01 and the specified date
+     * of the proleptic Gregorian calendar.
+     */
+    public static long epochDay(int year, int month, int dayOfMonth) {
+        // shift the year to start in March, so the leap day is the last day:
+        final long y = month <= 2 ? year - 1 : year;
+        final long era = floorDiv(y, 400);
+        final long yearOfEra = y - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + dayOfMonth - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @return  the year of the proleptic Gregorian calendar that the
+     * specified epoch day falls in.
+     */
+    public static int yearOf(long epochDay) {
+        final long shifted = epochDay + 719468;
+        final long era = floorDiv(shifted, 146097);
+        final long dayOfEra = shifted - era * 146097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long monthIndex = (5 * dayOfYear + 2) / 153;
+        return (int) (yearOfEra + era * 400 + (monthIndex >= 10 ? 1 : 0));
+    }
+
+    /**
+     * @return  the epoch day of the specified instant in the specified time
+     * zone.
+     */
+    public static long epochDay(long millis, TimeZone timeZone) {
+        return floorDiv(millis + timeZone.getOffset(millis), DAY_MILLIS);
+    }
+
+    private static long floorDiv(long dividend, long divisor) {
+        final long quotient = dividend / divisor;
+        return (dividend % divisor != 0 && (dividend < 0) != (divisor < 0)) ? quotient - 1 : quotient;
+    }
+
+    private static long floorMod(long dividend, long divisor) {
+        return dividend - floorDiv(dividend, divisor) * divisor;
+    }
+}
@@ -0,0 +1,71 @@
+package com.atlassian.example.reviewcreator;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class BranchRulesTest {
+
+    @Test
+    public void testDefaultRules() {
+
+        final BranchRules rules = new BranchRules(BranchRules.DEFAULT_RULES);
+        assertTrue(rules.accepts("CR", ImmutableSet.of("CR-12")));
+        assertTrue(rules.accepts("CR", ImmutableSet.of("master-fix")));
+        assertFalse(rules.accepts("CR", ImmutableSet.of("master")));
+        assertFalse(rules.accepts("CR", ImmutableSet.of("CR-12", "master_raptor2")));
+        assertFalse(rules.accepts("CR", Collections.<String>emptySet()));
+        assertTrue(rules.getInvalidRules().isEmpty());
+    }
+
+    @Test
+    public void testProjectRules() {
+
+        final BranchRules rules = new BranchRules(Arrays.asList(
+                "-master",
+                "CR: +feature/* +/CR-\\d+/ -release/?.*",
+                "FE: -/hotfix[-/].*/"));
+
+        assertTrue(rules.accepts("CR", ImmutableSet.of("feature/foo")));
+        assertTrue(rules.accepts("CR", ImmutableSet.of("CR-12")));
+        assertTrue(rules.accepts("CR", ImmutableSet.of("CR-12", "other")));
+        assertFalse(rules.accepts("CR", ImmutableSet.of("CR-12a")));
+        assertFalse(rules.accepts("CR", ImmutableSet.of("feature/foo", "release/1.0")));
+        assertFalse(rules.accepts("CR", ImmutableSet.of("feature/foo", "master")));
+
+        assertTrue(rules.accepts("FE", ImmutableSet.of("release/1.0")));
+        assertFalse(rules.accepts("FE", ImmutableSet.of("hotfix/1")));
+        assertFalse(rules.accepts("FE", ImmutableSet.of("master")));
+
+        assertTrue(rules.accepts("OTHER", ImmutableSet.of("feature.foo")));
+        assertFalse(rules.accepts("OTHER", ImmutableSet.of("master")));
+    }
+
+    @Test
+    public void testGlobsAreNotRegexes() {
+
+        final BranchRules rules = new BranchRules(Collections.singleton("+feature.* +v1.?"));
+        assertTrue(rules.accepts("CR", ImmutableSet.of("feature.foo")));
+        assertFalse(rules.accepts("CR", ImmutableSet.of("featureXfoo")));
+        assertTrue(rules.accepts("CR", ImmutableSet.of("v1.2")));
+        assertFalse(rules.accepts("CR", ImmutableSet.of("v1.23")));
+    }
+
+    @Test
+    public void testInvalidRules() {
+
+        final BranchRules rules = new BranchRules(Collections.singleton("CR: master -/[unclosed/ + -release"));
+        assertEquals(Arrays.asList("master", "-/[unclosed/", "+"), rules.getInvalidRules());
+        assertTrue(rules.accepts("CR", ImmutableSet.of("master")));
+        assertFalse(rules.accepts("CR", ImmutableSet.of("release")));
+    }
+
+    @Test
+    public void testNoRules() {
+        assertTrue(new BranchRules(Collections.<String>emptyList()).accepts("CR", ImmutableSet.of("master")));
+    }
+}
@@ -0,0 +1,84 @@
+package com.atlassian.example.reviewcreator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+
+        final CircuitBreaker breaker = new CircuitBreaker();
+        for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertTrue(breaker.allowRequest(0));
+            breaker.recordFailure(0);
+        }
+        // a success resets the count:
+        breaker.recordSuccess();
+        for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.recordFailure(0);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(0));
+
+        breaker.recordFailure(1000);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(1000));
+        assertFalse(breaker.allowRequest(1000));
+        assertEquals(1, breaker.getRejected());
+        assertEquals(1, breaker.getTrips());
+    }
+
+    @Test
+    public void testSingleTrialWhenHalfOpen() {
+
+        final CircuitBreaker breaker = tripped(0);
+        final long reopen = CircuitBreaker.MIN_OPEN_MILLIS;
+        assertFalse(breaker.allowRequest(reopen - 1));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(reopen));
+
+        assertTrue(breaker.allowRequest(reopen));
+        assertFalse(breaker.allowRequest(reopen));
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(reopen));
+        assertTrue(breaker.allowRequest(reopen));
+        assertTrue(breaker.allowRequest(reopen));
+    }
+
+    @Test
+    public void testFailedTrialBacksOff() {
+
+        final CircuitBreaker breaker = tripped(0);
+        long now = CircuitBreaker.MIN_OPEN_MILLIS;
+        assertTrue(breaker.allowRequest(now));
+        breaker.recordFailure(now);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(now + CircuitBreaker.MIN_OPEN_MILLIS));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(now + 2 * CircuitBreaker.MIN_OPEN_MILLIS));
+
+        // the interval is capped:
+        for (int i = 0; i < 20; i++) {
+            now = breaker.getOpenUntil();
+            assertTrue(breaker.allowRequest(now));
+            breaker.recordFailure(now);
+        }
+        assertEquals(now + CircuitBreaker.MAX_OPEN_MILLIS, breaker.getOpenUntil());
+    }
+
+    @Test
+    public void testReleasedTrial() {
+
+        final CircuitBreaker breaker = tripped(0);
+        assertTrue(breaker.allowRequest(CircuitBreaker.MIN_OPEN_MILLIS));
+        breaker.release();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(CircuitBreaker.MIN_OPEN_MILLIS));
+        assertTrue(breaker.allowRequest(CircuitBreaker.MIN_OPEN_MILLIS));
+    }
+
+    private static CircuitBreaker tripped(long now) {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.recordFailure(now);
+        }
+        return breaker;
+    }
+}
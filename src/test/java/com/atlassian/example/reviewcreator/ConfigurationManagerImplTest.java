@@ -36,6 +36,101 @@ public class ConfigurationManagerImplTest {
         assertTrue(actual.isEmpty());
     }
 
+    @Test
+    public void testWorkQueueSettings() {
+
+        final ConfigurationManagerImpl config = new ConfigurationManagerImpl(store);
+        assertEquals(OverflowPolicy.BLOCK, config.loadOverflowPolicy());
+        assertTrue(config.loadWorkerThreads() > 0);
+        assertTrue(config.loadQueueCapacity() > 0);
+        assertTrue(config.loadLaneCapacity() > 0);
+
+        config.storeWorkerThreads(8);
+        config.storeQueueCapacity(50);
+        config.storeLaneCapacity(10);
+        config.storeOverflowPolicy(OverflowPolicy.SPILL);
+        assertEquals(8, config.loadWorkerThreads());
+        assertEquals(50, config.loadQueueCapacity());
+        assertEquals(10, config.loadLaneCapacity());
+        assertEquals(OverflowPolicy.SPILL, config.loadOverflowPolicy());
+    }
+
+    @Test
+    public void testLagSlo() {
+
+        final ConfigurationManagerImpl config = new ConfigurationManagerImpl(store);
+        assertTrue(config.loadLagSlo() > 0);
+
+        config.storeLagSlo(0);
+        assertEquals(0, config.loadLagSlo());
+        assertEquals(0, new ConfigurationManagerImpl(store).loadLagSlo());
+    }
+
+    @Test
+    public void testLinesRoundTrip() {
+
+        final List<String> rules = Arrays.asList("CR: +feature/* -/release-\\d+;hotfix/", "-/a;b/");
+        final List<String> holidays = Arrays.asList("2026-12-24", "CR: 2026-12-24; 2026-12-31");
+        final ConfigurationManagerImpl config = new ConfigurationManagerImpl(store);
+        config.storeBranchRules(rules);
+        config.storeHolidays(holidays);
+
+        final ConfigurationManagerImpl reloaded = new ConfigurationManagerImpl(store);
+        assertEquals(rules, reloaded.loadBranchRules());
+        assertEquals(holidays, reloaded.loadHolidays());
+
+        config.storeSnapshot(reloaded.loadSnapshot());
+        assertEquals(rules, new ConfigurationManagerImpl(store).loadBranchRules());
+        assertEquals(holidays, new ConfigurationManagerImpl(store).loadHolidays());
+    }
+
+    @Test
+    public void testRemoteTimeouts() {
+
+        final ConfigurationManagerImpl config = new ConfigurationManagerImpl(store);
+        assertEquals(RemoteCallGuard.Service.values().length, config.loadRemoteTimeouts().size());
+        assertEquals(RemoteCallGuard.Service.REVIEWS.getDefaultTimeoutSeconds(),
+                config.loadSnapshot().getRemoteTimeout(RemoteCallGuard.Service.REVIEWS));
+
+        config.storeRemoteTimeouts(Collections.singletonMap(RemoteCallGuard.Service.REVIEWS, 5L));
+        final ConfigurationSnapshot reloaded = new ConfigurationManagerImpl(store).loadSnapshot();
+        assertEquals(5, reloaded.getRemoteTimeout(RemoteCallGuard.Service.REVIEWS));
+        assertEquals(RemoteCallGuard.Service.SEARCH.getDefaultTimeoutSeconds(),
+                reloaded.getRemoteTimeout(RemoteCallGuard.Service.SEARCH));
+    }
+
+    @Test
+    public void testSnapshot() {
+
+        final ConfigurationManagerImpl config = new ConfigurationManagerImpl(store);
+        final ConfigurationSnapshot initial = config.loadSnapshot();
+        assertSame(initial, config.loadSnapshot());
+
+        config.storeIterative(true);
+        final ConfigurationSnapshot iterative = config.loadSnapshot();
+        assertTrue(iterative.isIterative());
+        assertFalse(initial.isIterative());
+        assertTrue(iterative.getVersion() > initial.getVersion());
+
+        config.storeSnapshot(iterative.toBuilder()
+                .setRunAsUser("admin")
+                .setEnabledProjects(Arrays.asList("CR", "RC"))
+                .setCrucibleGroups(Arrays.asList("developers"))
+                .build());
+        final ConfigurationSnapshot stored = config.loadSnapshot();
+        assertEquals(iterative.getVersion() + 1, stored.getVersion());
+        assertEquals("admin", stored.getRunAsUser());
+        assertTrue(stored.getEnabledProjects().contains("RC"));
+        assertTrue(stored.isIterative());
+
+        // a fresh instance reads the same settings back from the store:
+        final ConfigurationSnapshot reloaded = new ConfigurationManagerImpl(store).loadSnapshot();
+        assertEquals("admin", reloaded.getRunAsUser());
+        assertEquals(Arrays.asList("CR", "RC"), reloaded.getEnabledProjectList());
+        assertEquals(stored.getCrucibleGroups(), reloaded.getCrucibleGroups());
+        assertTrue(reloaded.isIterative());
+    }
+
     private static class SettingsMock implements PluginSettings {
 
         private final Map<String, Object> store = new HashMap<String, Object>();
@@ -0,0 +1,39 @@
+package com.atlassian.example.reviewcreator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+
+        for (long value = 0; value < 10000000L; value += value < 1000 ? 1 : 997) {
+            final int bucket = LatencyHistogram.bucketOf(value);
+            final long lower = bucket == 0 ? 0 : LatencyHistogram.upperBoundOf(bucket - 1) + 1;
+            assertTrue(value + " is below bucket " + bucket, value >= lower);
+            assertTrue(value + " is above bucket " + bucket, value <= LatencyHistogram.upperBoundOf(bucket));
+        }
+        assertEquals(LatencyHistogram.bucketOf(1L << 40), LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getMean());
+        assertEquals(1000, histogram.getMax());
+
+        // within the 12.5% resolution of the buckets:
+        assertTrue(histogram.getPercentile(50) >= 500 && histogram.getPercentile(50) <= 563);
+        assertTrue(histogram.getPercentile(99) >= 990 && histogram.getPercentile(99) <= 1000);
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+}
@@ -0,0 +1,41 @@
+package com.atlassian.example.reviewcreator;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ReviewIdScannerTest {
+
+    @Test
+    public void testScan() {
+
+        final ReviewIdScanner scanner = new ReviewIdScanner(Arrays.asList("FOO", "CR", "CR-FE"));
+
+        assertTrue(scanner.scan(null).isEmpty());
+        assertTrue(scanner.scan("").isEmpty());
+        assertTrue(scanner.scan("FOO").isEmpty());
+        assertTrue(scanner.scan("This is not a review id: FOO-").isEmpty());
+        assertTrue(scanner.scan("This is a review in a different project: BAR-1").isEmpty());
+
+        assertEquals(ImmutableSet.of("FOO-1"), scanner.scan("FOO-1"));
+        assertEquals(ImmutableSet.of("FOO-1", "FOO-3456"), scanner.scan("There's 2 reviews in here: FOO-1, FOOBAR-4, FOO-3456"));
+        assertEquals(ImmutableSet.of("CR-FE-1", "CR-2"), scanner.scan("CR-FE-1 and CR-2 and CR-FE-1 again"));
+    }
+
+    @Test
+    public void testMatchesExtractReviewIds() {
+
+        final String message = "Squashed: CR-1, CR-FE-2, FOO-33\nXFOO-4 and CR-FE-\nFOO-5-6";
+        final ReviewIdScanner single = new ReviewIdScanner(Collections.singleton("FOO"));
+        assertEquals(Utils.extractReviewIds(message, "FOO"), single.scan(message));
+    }
+
+    @Test
+    public void testNoProjects() {
+        assertTrue(new ReviewIdScanner(Collections.<String>emptySet()).scan("FOO-1").isEmpty());
+    }
+}
@@ -0,0 +1,67 @@
+package com.atlassian.example.reviewcreator;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReviewLagTrackerTest {
+
+    @Test
+    public void testWindows() {
+
+        final ReviewLagTracker tracker = new ReviewLagTracker();
+        final long now = System.currentTimeMillis();
+        for (int i = 1; i <= 100; i++) {
+            // reviewed a minute ago, after i seconds:
+            tracker.record("CR", now - 60000 - i * 1000L, now - 60000);
+        }
+        // reviewed two hours ago, after 10 minutes:
+        tracker.record("CR", now - ReviewLagTracker.HOUR_MILLIS * 2 - 600000, now - ReviewLagTracker.HOUR_MILLIS * 2);
+        // two days ago, outside both windows:
+        tracker.record("FE", now - ReviewLagTracker.DAY_MILLIS * 2 - 1000, now - ReviewLagTracker.DAY_MILLIS * 2);
+
+        final List<ReviewLagTracker.Summary> summaries = tracker.getSummaries();
+        assertEquals(1, summaries.size());
+        final ReviewLagTracker.Summary summary = summaries.get(0);
+        assertEquals("CR", summary.getProjectKey());
+
+        assertEquals(100, summary.getHour().getCount());
+        assertEquals(50, summary.getHour().getP50());
+        assertEquals(95, summary.getHour().getP95());
+        assertEquals(99, summary.getHour().getP99());
+
+        assertEquals(101, summary.getDay().getCount());
+        assertEquals(51, summary.getDay().getP50());
+        assertEquals(100, summary.getDay().getP99());
+    }
+
+    @Test
+    public void testRingIsBounded() {
+
+        final ReviewLagTracker tracker = new ReviewLagTracker();
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < ReviewLagTracker.SAMPLES_PER_PROJECT * 2; i++) {
+            // the older half lags by an hour, the newer half by a second:
+            final long lag = i < ReviewLagTracker.SAMPLES_PER_PROJECT ? ReviewLagTracker.HOUR_MILLIS : 1000;
+            tracker.record("CR", now - lag, now);
+        }
+        final ReviewLagTracker.Summary summary = tracker.getSummaries().get(0);
+        assertEquals(ReviewLagTracker.SAMPLES_PER_PROJECT, summary.getHour().getCount());
+        assertEquals(1, summary.getHour().getP99());
+    }
+
+    @Test
+    public void testIgnoresBackfills() {
+
+        final ReviewLagTracker tracker = new ReviewLagTracker();
+        final long now = System.currentTimeMillis();
+        tracker.record("CR", now - ReviewLagTracker.MAX_LAG_MILLIS - 1, now);
+        assertTrue(tracker.getSummaries().isEmpty());
+
+        // clock skew:
+        tracker.record("CR", now + 5000, now);
+        assertEquals(0, tracker.getSummaries().get(0).getHour().getP50());
+    }
+}
@@ -0,0 +1,81 @@
+package com.atlassian.example.reviewcreator;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class WorkingDayCalendarTest {
+
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+    @Test
+    public void testEpochDays() {
+
+        assertEquals(0, WorkingDayCalendar.epochDay(1970, 1, 1));
+        assertEquals(-1, WorkingDayCalendar.epochDay(1969, 12, 31));
+        assertEquals(11016, WorkingDayCalendar.epochDay(2000, 2, 29));
+        for (long day = -1000; day < 100000; day += 13) {
+            final int year = WorkingDayCalendar.yearOf(day);
+            assertTrue(day >= WorkingDayCalendar.epochDay(year, 1, 1));
+            assertTrue(day < WorkingDayCalendar.epochDay(year + 1, 1, 1));
+        }
+    }
+
+    @Test
+    public void testWeekends() {
+
+        final WorkingDayCalendar calendar = new WorkingDayCalendar(NEW_YORK, new int[0], 2026, 2027);
+        final long friday = WorkingDayCalendar.epochDay(2026, 10, 16);
+        assertTrue(calendar.isWorkingDay(friday));
+        assertFalse(calendar.isWorkingDay(friday + 1));
+        assertFalse(calendar.isWorkingDay(friday + 2));
+
+        assertEquals(friday + 3, calendar.nthWorkingDayAfter(friday, 1));
+        assertEquals(friday + 4, calendar.nthWorkingDayAfter(friday, 2));
+        assertEquals(friday + 13, calendar.nthWorkingDayAfter(friday, 9));
+        // starting on a Saturday:
+        assertEquals(friday + 3, calendar.nthWorkingDayAfter(friday + 1, 1));
+    }
+
+    @Test
+    public void testHolidays() {
+
+        final int christmas = (int) WorkingDayCalendar.epochDay(2026, 12, 25);
+        final WorkingDayCalendar calendar = new WorkingDayCalendar(NEW_YORK, new int[] {christmas}, 2026, 2027);
+        // Thursday + 1 skips the Friday holiday and the weekend:
+        assertEquals(christmas + 3, calendar.nthWorkingDayAfter(christmas - 1, 1));
+    }
+
+    @Test
+    public void testOutsidePrecomputedYears() {
+
+        final int[] holidays = {(int) WorkingDayCalendar.epochDay(2027, 12, 31)};
+        final WorkingDayCalendar small = new WorkingDayCalendar(NEW_YORK, holidays, 2027, 2027);
+        final WorkingDayCalendar large = new WorkingDayCalendar(NEW_YORK, holidays, 2020, 2035);
+        for (long day = WorkingDayCalendar.epochDay(2026, 11, 1); day < WorkingDayCalendar.epochDay(2029, 2, 1); day++) {
+            for (int n = 1; n < 30; n += 7) {
+                assertEquals(large.nthWorkingDayAfter(day, n), small.nthWorkingDayAfter(day, n));
+            }
+        }
+    }
+
+    @Test
+    public void testDaylightSavings() {
+
+        final WorkingDayCalendar calendar = new WorkingDayCalendar(NEW_YORK, new int[0], 2009, 2009);
+        final GregorianCalendar start = new GregorianCalendar(NEW_YORK);
+        start.clear();
+        start.set(2009, Calendar.MARCH, 6, 9, 15);
+
+        // DST started on Sunday March 8th:
+        final GregorianCalendar due = new GregorianCalendar(NEW_YORK);
+        due.setTime(calendar.addWorkingDays(start.getTime(), 5));
+        assertEquals(13, due.get(Calendar.DAY_OF_MONTH));
+        assertEquals(9, due.get(Calendar.HOUR_OF_DAY));
+        assertEquals(15, due.get(Calendar.MINUTE));
+    }
+}